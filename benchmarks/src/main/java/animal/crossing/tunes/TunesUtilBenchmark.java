@@ -0,0 +1,63 @@
+package animal.crossing.tunes;
+
+import animal.crossing.tunes.catalog.Game;
+import animal.crossing.tunes.catalog.TrackCatalog;
+import animal.crossing.tunes.catalog.Weather;
+import com.amazon.speech.speechlet.SpeechletResponse;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building the play response and the helpers it relies on.
+ * Lives in the skill's package so the package-private helpers can be called directly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TunesUtilBenchmark {
+
+    // 18:24:05 UTC: 10:24 in Los Angeles and 23:54 in Kolkata, covering both halves of the hour
+    private static final long TIMESTAMP = 1520706245000L;
+    private static final String PREVIOUS_TOKEN = "10:00 AM (Extended) - Animal Crossing - New Leaf Music|benchmark";
+    private static final long TRACK_LENGTH_MS = TimeUnit.MINUTES.toMillis(30);
+
+    @Param({"America/Los_Angeles", "Asia/Kolkata"})
+    public String zoneId;
+
+    private ZoneId zone;
+    private long hourMillis;
+    private int dayHour;
+
+    @Setup
+    public void setUp(){
+        zone = ZoneId.of(zoneId);
+        long localTime = TunesUtil.getLocalTime(TIMESTAMP, zone);
+        hourMillis = Math.floorMod(localTime, TimeUnit.HOURS.toMillis(1));
+        dayHour = (int) (Math.floorMod(localTime, TimeUnit.DAYS.toMillis(1)) / TimeUnit.HOURS.toMillis(1));
+    }
+
+    @Benchmark
+    public SpeechletResponse getTune(){
+        return TunesUtil.getTune(TIMESTAMP, zone, false);
+    }
+
+    @Benchmark
+    public SpeechletResponse getNextTune(){
+        return TunesUtil.getNextTune(TunesUtil.getTrackEndTime(TIMESTAMP, 1700000, PREVIOUS_TOKEN), zone, PREVIOUS_TOKEN);
+    }
+
+    @Benchmark
+    public long getOffset(){
+        return TunesUtil.getOffset(hourMillis, TRACK_LENGTH_MS);
+    }
+
+    @Benchmark
+    public int findTrack(){
+        return TrackCatalog.find(Game.NEW_LEAF, dayHour, Weather.CLEAR);
+    }
+}
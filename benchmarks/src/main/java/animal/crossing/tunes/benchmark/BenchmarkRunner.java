@@ -0,0 +1,24 @@
+package animal.crossing.tunes.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler attached, so every result also reports allocation per operation.
+ * Accepts the usual JMH command line, e.g. {@code java -jar target/benchmarks.jar HandlerBenchmark -f 1}.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .jvmArgsAppend("-Dlog4j.configuration=log4j-benchmark.properties")
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,49 @@
+package animal.crossing.tunes.benchmark;
+
+import animal.crossing.tunes.ACTunesSpeechletRequestStreamHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs recorded request envelopes through the Lambda entry point, from raw request bytes to raw response bytes.
+ * The device address comes from a local stub, so after the first call the device's zone is served from the cache
+ * and the results show the steady state hot path of a warm container.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerBenchmark {
+
+    @Param({"launch", "intent-resume", "intent-help", "playback-started", "playback-nearly-finished", "playback-stopped"})
+    public String envelope;
+
+    private StubAlexaApi alexaApi;
+    private ACTunesSpeechletRequestStreamHandler handler;
+    private byte[] request;
+
+    @Setup
+    public void setUp() throws IOException {
+        alexaApi = new StubAlexaApi();
+        handler = new ACTunesSpeechletRequestStreamHandler();
+        request = Recordings.envelope(envelope, alexaApi.getEndpoint());
+    }
+
+    @TearDown
+    public void tearDown(){
+        alexaApi.close();
+    }
+
+    @Benchmark
+    public byte[] handleRequest() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(1024);
+        handler.handleRequest(new ByteArrayInputStream(request), output, null);
+        return output.toByteArray();
+    }
+}
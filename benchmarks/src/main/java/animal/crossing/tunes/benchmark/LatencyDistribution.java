@@ -0,0 +1,82 @@
+package animal.crossing.tunes.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A latency a stub adds before answering, parsed from a short spec:
+ * {@code 20} for a fixed 20 ms, {@code 10-50} for uniform between 10 and 50 ms,
+ * or {@code lognormal:30:400} for a long tailed distribution with a 30 ms median and a 400 ms p99.
+ */
+public abstract class LatencyDistribution {
+
+    // Standard normal quantile at 0.99
+    private static final double Z_99 = 2.3263;
+
+    /**
+     * @return the next latency in milliseconds
+     */
+    public abstract long nextMillis();
+
+    public static LatencyDistribution parse(String spec){
+        String trimmed = spec.trim();
+        if(trimmed.startsWith("lognormal:")){
+            String[] parts = trimmed.split(":");
+            if(parts.length != 3){
+                throw new IllegalArgumentException("Expected lognormal:<median>:<p99>, got " + spec);
+            }
+            return lognormal(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]), spec);
+        }
+
+        int dash = trimmed.indexOf('-');
+        if(dash > 0){
+            long min = Long.parseLong(trimmed.substring(0, dash));
+            long max = Long.parseLong(trimmed.substring(dash + 1));
+            if(max < min){
+                throw new IllegalArgumentException("Empty latency range " + spec);
+            }
+            return new LatencyDistribution() {
+                @Override
+                public long nextMillis() {
+                    return ThreadLocalRandom.current().nextLong(min, max + 1);
+                }
+
+                @Override
+                public String toString() {
+                    return spec;
+                }
+            };
+        }
+
+        long fixed = Long.parseLong(trimmed);
+        return new LatencyDistribution() {
+            @Override
+            public long nextMillis() {
+                return fixed;
+            }
+
+            @Override
+            public String toString() {
+                return spec;
+            }
+        };
+    }
+
+    private static LatencyDistribution lognormal(double median, double p99, String spec){
+        if(median <= 0 || p99 < median){
+            throw new IllegalArgumentException("Expected 0 < median <= p99, got " + spec);
+        }
+        double mu = Math.log(median);
+        double sigma = (Math.log(p99) - mu) / Z_99;
+        return new LatencyDistribution() {
+            @Override
+            public long nextMillis() {
+                return Math.round(Math.exp(mu + sigma * ThreadLocalRandom.current().nextGaussian()));
+            }
+
+            @Override
+            public String toString() {
+                return spec;
+            }
+        };
+    }
+}
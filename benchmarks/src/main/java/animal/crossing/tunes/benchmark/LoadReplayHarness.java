@@ -0,0 +1,367 @@
+package animal.crossing.tunes.benchmark;
+
+import animal.crossing.tunes.ACTunesSpeechletRequestStreamHandler;
+import animal.crossing.tunes.service.SharedHttpClient;
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays Alexa request envelopes into the Lambda handler at a configurable concurrency and rate,
+ * with the Alexa and Google APIs replaced by {@link StubUpstreams}, and reports throughput, latency
+ * percentiles and outbound calls per request type.
+ * <p>
+ * Options are given as {@code --name=value}:
+ * <ul>
+ *     <li>{@code requests} (2000), {@code concurrency} (16), {@code rate} requests per second, 0 for as fast as possible (0)</li>
+ *     <li>{@code devices} distinct device IDs the requests are spread over (500)</li>
+ *     <li>{@code corpus} a directory of recorded envelopes to replay instead of the bundled ones</li>
+ *     <li>{@code mix} weights of the bundled envelopes, e.g. {@code launch:1,playback-started:3}</li>
+ *     <li>{@code clock} a fixed request timestamp such as {@code 2018-03-10T18:59:58Z}, to replay a top of hour burst</li>
+ *     <li>{@code lambda-timeout-ms} the remaining time reported by the Lambda context (8000)</li>
+ *     <li>{@code alexa-latency}, {@code geocode-latency}, {@code timezone-latency}: see {@link LatencyDistribution}</li>
+ *     <li>{@code timezone-setting-rate} the fraction of devices with a time zone setting (0.9)</li>
+ *     <li>{@code alexa-error-rate}, {@code forbidden-rate}, {@code google-fraction}, {@code google-error-rate}</li>
+ *     <li>{@code google-postal-codes} distinct postal codes the devices that need Google are spread over (100)</li>
+ *     <li>{@code postal-snapshot} a postal code cache snapshot file to start from and save to, none by default</li>
+ * </ul>
+ * Run with {@code java -cp target/benchmarks.jar animal.crossing.tunes.benchmark.LoadReplayHarness --rate=200}.
+ */
+public class LoadReplayHarness {
+
+    private static final String DEFAULT_MIX = "playback-started:4,playback-nearly-finished:4,playback-stopped:2,"
+            + "launch:2,intent-resume:1,intent-help:1";
+
+    private static final Pattern DEVICE_ID = Pattern.compile("\"deviceId\"\\s*:\\s*\"[^\"]*\"");
+    private static final Pattern API_ENDPOINT = Pattern.compile("\"apiEndpoint\"\\s*:\\s*\"[^\"]*\"");
+    private static final Pattern ACCESS_TOKEN = Pattern.compile("\"apiAccessToken\"\\s*:\\s*\"[^\"]*\"");
+    private static final Pattern TIMESTAMP = Pattern.compile("\"timestamp\"\\s*:\\s*\"[^\"]*\"");
+    private static final Pattern TYPE = Pattern.compile("\"type\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern INTENT_NAME = Pattern.compile("\"intent\"\\s*:\\s*\\{\\s*\"name\"\\s*:\\s*\"([^\"]+)\"");
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+
+        StubUpstreams.Config stubConfig = new StubUpstreams.Config();
+        if(options.containsKey("alexa-latency")) stubConfig.alexaLatency = LatencyDistribution.parse(options.get("alexa-latency"));
+        if(options.containsKey("geocode-latency")) stubConfig.geocodeLatency = LatencyDistribution.parse(options.get("geocode-latency"));
+        if(options.containsKey("timezone-latency")) stubConfig.timezoneLatency = LatencyDistribution.parse(options.get("timezone-latency"));
+        stubConfig.alexaErrorRate = doubleOption(options, "alexa-error-rate", stubConfig.alexaErrorRate);
+        stubConfig.timeZoneSettingRate = doubleOption(options, "timezone-setting-rate", stubConfig.timeZoneSettingRate);
+        stubConfig.forbiddenRate = doubleOption(options, "forbidden-rate", stubConfig.forbiddenRate);
+        stubConfig.googleFraction = doubleOption(options, "google-fraction", stubConfig.googleFraction);
+        stubConfig.googleErrorRate = doubleOption(options, "google-error-rate", stubConfig.googleErrorRate);
+        stubConfig.googlePostalCodes = (int) longOption(options, "google-postal-codes", stubConfig.googlePostalCodes);
+
+        int requests = (int) longOption(options, "requests", 2000);
+        int concurrency = (int) longOption(options, "concurrency", 16);
+        double rate = doubleOption(options, "rate", 0);
+        int devices = (int) longOption(options, "devices", 500);
+        int lambdaTimeoutMs = (int) longOption(options, "lambda-timeout-ms", 8000);
+        String clock = options.get("clock");
+
+        try (StubUpstreams stubs = new StubUpstreams(stubConfig)) {
+            // Has to be set before the skill's classes are loaded
+            System.setProperty("GOOGLE_MAPS_BASE_URL", stubs.getGoogleBaseUrl());
+            System.setProperty("POSTAL_CACHE_SNAPSHOT_FILE", options.getOrDefault("postal-snapshot", ""));
+            if(System.getProperty("log4j.configuration") == null){
+                System.setProperty("log4j.configuration", "log4j-benchmark.properties");
+            }
+
+            List<Template> corpus = loadCorpus(options, stubs.getAlexaEndpoint());
+            ACTunesSpeechletRequestStreamHandler handler = new ACTunesSpeechletRequestStreamHandler();
+
+            System.out.printf("Replaying %d requests over %d devices, concurrency %d, rate %s%n",
+                    requests, devices, concurrency, rate > 0 ? rate + "/s" : "unlimited");
+
+            Map<String, Stats> statsByType = new TreeMap<>();
+            for(Template template : corpus){
+                statsByType.computeIfAbsent(template.type, type -> new Stats());
+            }
+
+            AtomicLong next = new AtomicLong();
+            ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+            long start = System.nanoTime();
+            for(int worker = 0; worker < concurrency; worker++){
+                workers.execute(() -> {
+                    long index;
+                    while((index = next.getAndIncrement()) < requests){
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        Template template = corpus.get(random.nextInt(corpus.size()));
+                        String deviceId = "amzn1.ask.device.LOAD-" + random.nextInt(devices);
+                        String timestamp = clock != null ? clock
+                                : Instant.now().truncatedTo(ChronoUnit.SECONDS).toString();
+                        byte[] request = template.render(deviceId, timestamp);
+
+                        // With a fixed rate, latency counts from when the request was due, so queueing shows up
+                        long begin = System.nanoTime();
+                        if(rate > 0){
+                            long due = start + (long) (index * TimeUnit.SECONDS.toNanos(1) / rate);
+                            long wait = due - System.nanoTime();
+                            if(wait > 0){
+                                sleepNanos(wait);
+                            }
+                            begin = due;
+                        }
+
+                        ByteArrayOutputStream output = new ByteArrayOutputStream(1024);
+                        boolean failed = false;
+                        try {
+                            handler.handleRequest(new ByteArrayInputStream(request), output,
+                                    new HarnessContext(lambdaTimeoutMs));
+                        } catch (IOException | RuntimeException e) {
+                            failed = true;
+                        }
+                        long latency = System.nanoTime() - begin;
+
+                        boolean played = !failed && output.toString().contains("AudioPlayer.Play");
+                        statsByType.get(template.type).record(latency, failed, played);
+                    }
+                });
+            }
+            workers.shutdown();
+            workers.awaitTermination(1, TimeUnit.DAYS);
+            long elapsed = System.nanoTime() - start;
+
+            report(statsByType, stubs.getCounts(), requests, elapsed);
+        }
+    }
+
+    private static void report(Map<String, Stats> statsByType, Map<String, Long> counts, int requests, long elapsed){
+        System.out.printf("%nThroughput: %.1f requests/s (%d requests in %d ms)%n%n",
+                requests / (elapsed / 1e9), requests, TimeUnit.NANOSECONDS.toMillis(elapsed));
+
+        System.out.printf("%-36s %7s %7s %7s %9s %9s %9s %9s%n",
+                "request type", "count", "failed", "played", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        Stats all = new Stats();
+        for(Map.Entry<String, Stats> entry : statsByType.entrySet()){
+            entry.getValue().print(entry.getKey());
+            all.add(entry.getValue());
+        }
+        all.print("all");
+
+        System.out.printf("%nOutbound calls (upstream, request type, status):%n");
+        counts.forEach((key, count) -> System.out.printf("  %-60s %7d%n", key, count));
+        System.out.printf("%nHTTP pool: %s%n", SharedHttpClient.getPoolStats());
+    }
+
+    private static List<Template> loadCorpus(Map<String, String> options, String apiEndpoint) throws IOException {
+        List<Template> corpus = new ArrayList<>();
+        String directory = options.get("corpus");
+        if(directory != null){
+            File[] files = new File(directory).listFiles((dir, name) -> name.endsWith(".json"));
+            if(files == null || files.length == 0){
+                throw new IllegalArgumentException("No .json envelopes in " + directory);
+            }
+            Arrays.sort(files);
+            for(File file : files){
+                corpus.add(new Template(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), apiEndpoint));
+            }
+            return corpus;
+        }
+
+        for(String entry : options.getOrDefault("mix", DEFAULT_MIX).split(",")){
+            String[] parts = entry.trim().split(":");
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+            Template template = new Template(
+                    new String(Recordings.envelope(parts[0], apiEndpoint), StandardCharsets.UTF_8), apiEndpoint);
+            for(int i = 0; i < weight; i++){
+                corpus.add(template);
+            }
+        }
+        return corpus;
+    }
+
+    private static Map<String, String> parseOptions(String[] args){
+        Map<String, String> options = new HashMap<>();
+        for(String arg : args){
+            if(!arg.startsWith("--") || !arg.contains("=")){
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+
+    private static long longOption(Map<String, String> options, String name, long defaultValue){
+        return options.containsKey(name) ? Long.parseLong(options.get(name)) : defaultValue;
+    }
+
+    private static double doubleOption(Map<String, String> options, String name, double defaultValue){
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+    }
+
+    private static void sleepNanos(long nanos){
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A recorded envelope with the device, endpoint, access token and timestamp made replaceable.
+     */
+    private static class Template {
+        private final String type;
+        private final String[] parts;
+
+        private Template(String envelope, String apiEndpoint){
+            this.type = getType(envelope);
+
+            String prepared = API_ENDPOINT.matcher(envelope)
+                    .replaceAll(Matcher.quoteReplacement("\"apiEndpoint\":\"" + apiEndpoint + "\""));
+            prepared = ACCESS_TOKEN.matcher(prepared).replaceAll(Matcher.quoteReplacement(
+                    "\"apiAccessToken\":\"" + StubUpstreams.TOKEN_PREFIX + type + "\""));
+            prepared = DEVICE_ID.matcher(prepared).replaceAll("\"deviceId\":\"\u0000\"");
+            prepared = TIMESTAMP.matcher(prepared).replaceAll("\"timestamp\":\"\u0001\"");
+            this.parts = prepared.split("(?=[\u0000\u0001])|(?<=[\u0000\u0001])");
+        }
+
+        private byte[] render(String deviceId, String timestamp){
+            StringBuilder envelope = new StringBuilder(1024);
+            for(String part : parts){
+                if(part.equals("\u0000")){
+                    envelope.append(deviceId);
+                } else if(part.equals("\u0001")){
+                    envelope.append(timestamp);
+                } else {
+                    envelope.append(part);
+                }
+            }
+            return envelope.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static String getType(String envelope){
+            int request = envelope.indexOf("\"request\"");
+            Matcher type = TYPE.matcher(envelope);
+            if(request < 0 || !type.find(request)){
+                throw new IllegalArgumentException("Envelope has no request type");
+            }
+            Matcher intent = INTENT_NAME.matcher(envelope);
+            return intent.find(request) ? type.group(1) + "/" + intent.group(1) : type.group(1);
+        }
+    }
+
+    /**
+     * Latencies and outcomes of one request type.
+     */
+    private static class Stats {
+        private long[] latencies = new long[1024];
+        private int count;
+        private int failed;
+        private int played;
+
+        private synchronized void record(long latencyNanos, boolean failed, boolean played){
+            if(count == latencies.length){
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latencyNanos;
+            if(failed) this.failed++;
+            if(played) this.played++;
+        }
+
+        private synchronized void add(Stats other){
+            for(int i = 0; i < other.count; i++){
+                record(other.latencies[i], false, false);
+            }
+            failed += other.failed;
+            played += other.played;
+        }
+
+        private synchronized void print(String type){
+            if(count == 0){
+                return;
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            System.out.printf("%-36s %7d %7d %7d %9.2f %9.2f %9.2f %9.2f%n", type, count, failed, played,
+                    percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                    sorted[count - 1] / 1e6);
+        }
+
+        private static double percentile(long[] sorted, double quantile){
+            int index = (int) Math.ceil(quantile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+        }
+    }
+
+    /**
+     * A Lambda context reporting a fixed remaining time, as a fresh invocation would.
+     */
+    private static class HarnessContext implements Context {
+        private final long deadline;
+
+        private HarnessContext(int timeoutMs){
+            this.deadline = System.currentTimeMillis() + timeoutMs;
+        }
+
+        @Override
+        public int getRemainingTimeInMillis() {
+            return (int) (deadline - System.currentTimeMillis());
+        }
+
+        @Override
+        public String getAwsRequestId() {
+            return "load-harness";
+        }
+
+        @Override
+        public String getLogGroupName() {
+            return null;
+        }
+
+        @Override
+        public String getLogStreamName() {
+            return null;
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "ac-tunes";
+        }
+
+        @Override
+        public CognitoIdentity getIdentity() {
+            return null;
+        }
+
+        @Override
+        public ClientContext getClientContext() {
+            return null;
+        }
+
+        @Override
+        public int getMemoryLimitInMB() {
+            return 512;
+        }
+
+        @Override
+        public LambdaLogger getLogger() {
+            return System.out::print;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package animal.crossing.tunes.benchmark;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Loads the recorded API payloads and request envelopes bundled with the benchmarks.
+ */
+public final class Recordings {
+
+    private Recordings(){
+    }
+
+    /**
+     * @param name the payload file name without extension, e.g. "geocode"
+     * @return the recorded response body
+     */
+    public static byte[] payload(String name){
+        return load("/payloads/" + name + ".json");
+    }
+
+    /**
+     * @param name the envelope file name without extension, e.g. "launch"
+     * @param apiEndpoint the Alexa API endpoint to put in the envelope's system context
+     * @return the recorded request envelope
+     */
+    public static byte[] envelope(String name, String apiEndpoint){
+        String envelope = new String(load("/envelopes/" + name + ".json"), StandardCharsets.UTF_8);
+        return envelope.replace("${apiEndpoint}", apiEndpoint).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] load(String resource){
+        try (InputStream in = Recordings.class.getResourceAsStream(resource)) {
+            if(in == null){
+                throw new IllegalArgumentException("Missing recording " + resource);
+            }
+            return IOUtils.toByteArray(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
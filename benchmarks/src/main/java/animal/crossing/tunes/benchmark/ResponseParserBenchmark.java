@@ -0,0 +1,52 @@
+package animal.crossing.tunes.benchmark;
+
+import animal.crossing.tunes.data.DeviceAddress;
+import animal.crossing.tunes.data.DeviceGeocodingResponse;
+import animal.crossing.tunes.data.DeviceTimezone;
+import animal.crossing.tunes.service.DeviceAddressParser;
+import animal.crossing.tunes.service.GeocodeResponseParser;
+import animal.crossing.tunes.service.TimezoneResponseParser;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses recorded Google Maps and Alexa responses the same way the clients do, straight from the response entity.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParserBenchmark {
+
+    private byte[] geocode;
+    private byte[] timezone;
+    private byte[] address;
+
+    @Setup
+    public void setUp(){
+        geocode = Recordings.payload("geocode");
+        timezone = Recordings.payload("timezone");
+        address = Recordings.payload("address");
+    }
+
+    @Benchmark
+    public DeviceGeocodingResponse geocode() throws IOException {
+        return GeocodeResponseParser.INSTANCE.parse(new ByteArrayEntity(geocode, ContentType.APPLICATION_JSON));
+    }
+
+    @Benchmark
+    public DeviceTimezone timezone() throws IOException {
+        return TimezoneResponseParser.INSTANCE.parse(new ByteArrayEntity(timezone, ContentType.APPLICATION_JSON));
+    }
+
+    @Benchmark
+    public DeviceAddress address() throws IOException {
+        return DeviceAddressParser.INSTANCE.parse(new ByteArrayEntity(address, ContentType.APPLICATION_JSON));
+    }
+}
@@ -0,0 +1,227 @@
+package animal.crossing.tunes.benchmark;
+
+import animal.crossing.tunes.ACTunesServer;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hammers an embedded {@link ACTunesServer} from many threads with devices spread over several time zones,
+ * and checks that every response carries the track for its own device's local time and, for the help intent,
+ * the title of its own device's track. Exits with status 1 if any response belongs to another device.
+ * <p>
+ * Options: {@code --threads=32 --requests=200 --devices=400}, requests being per thread.
+ */
+public class ServerConcurrencyCheck {
+
+    private static final String APPLICATION_ID = "amzn1.ask.skill.8a578f3f-52cc-45a6-b36e-56d2dc3496a3";
+    private static final String[][] ADDRESSES = {
+            {"US", "98109", "America/Los_Angeles"},
+            {"US", "10001", "America/New_York"},
+            {"AU", "2000", "Australia/Sydney"},
+            {"JP", "100-0001", "Asia/Tokyo"},
+            {"IN", "110001", "Asia/Kolkata"},
+    };
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+
+    public static void main(String[] args) throws Exception {
+        int threads = 32;
+        int requests = 200;
+        int devices = 400;
+        for(String arg : args){
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if(arg.startsWith("--threads=")) threads = Integer.parseInt(value);
+            else if(arg.startsWith("--requests=")) requests = Integer.parseInt(value);
+            else if(arg.startsWith("--devices=")) devices = Integer.parseInt(value);
+            else throw new IllegalArgumentException("Unknown option " + arg);
+        }
+        if(System.getProperty("log4j.configuration") == null){
+            System.setProperty("log4j.configuration", "log4j-benchmark.properties");
+        }
+
+        HttpServer addressApi = startAddressApi();
+        String apiEndpoint = "http://127.0.0.1:" + addressApi.getAddress().getPort();
+        ACTunesServer server = ACTunesServer.start(0, threads, null, false);
+        URL skillUrl = new URL("http://127.0.0.1:" + server.getPort() + "/");
+
+        AtomicInteger checked = new AtomicInteger();
+        AtomicInteger mismatches = new AtomicInteger();
+        int deviceCount = devices;
+        int requestsPerThread = requests;
+
+        ExecutorService clients = Executors.newFixedThreadPool(threads);
+        List<Future<?>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for(int thread = 0; thread < threads; thread++){
+            results.add(clients.submit(() -> {
+                for(int i = 0; i < requestsPerThread; i++){
+                    int device = ThreadLocalRandom.current().nextInt(deviceCount);
+                    String mismatch = checkRequest(skillUrl, apiEndpoint, device, i % 4);
+                    checked.incrementAndGet();
+                    if(mismatch != null){
+                        mismatches.incrementAndGet();
+                        System.out.println("MISMATCH device " + device + ": " + mismatch);
+                    }
+                }
+                return null;
+            }));
+        }
+        for(Future<?> result : results){
+            result.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        clients.shutdown();
+        server.stop();
+        addressApi.stop(0);
+
+        System.out.printf("%d requests from %d threads in %d ms (%.0f requests/s), %d mismatches%n",
+                checked.get(), threads, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                checked.get() / (elapsed / 1e9), mismatches.get());
+        System.exit(mismatches.get() == 0 ? 0 : 1);
+    }
+
+    /**
+     * Sends one request for the device and compares the response with what that device should get.
+     * @return a description of the mismatch, or null if the response is right
+     */
+    private static String checkRequest(URL skillUrl, String apiEndpoint, int device, int kind) throws IOException {
+        ZoneId zone = ZoneId.of(ADDRESSES[device % ADDRESSES.length][2]);
+        long timestamp = Instant.now().truncatedTo(ChronoUnit.SECONDS).toEpochMilli();
+        // Each device claims to be playing a different hour, so the help intent answer identifies the device
+        String deviceTitle = title(device % 24);
+        String playingToken = deviceTitle + "|check-" + device;
+
+        String requestType;
+        String extra = "";
+        long offset = TimeUnit.MINUTES.toMillis(29);
+        if(kind == 0){
+            requestType = "\"type\":\"LaunchRequest\"";
+        } else if(kind == 1){
+            requestType = "\"type\":\"IntentRequest\"";
+            extra = ",\"intent\":{\"name\":\"AMAZON.ResumeIntent\",\"confirmationStatus\":\"NONE\"}";
+        } else if(kind == 2){
+            requestType = "\"type\":\"AudioPlayer.PlaybackNearlyFinished\",\"token\":\"" + playingToken
+                    + "\",\"offsetInMilliseconds\":" + offset;
+        } else {
+            requestType = "\"type\":\"IntentRequest\"";
+            extra = ",\"intent\":{\"name\":\"AMAZON.HelpIntent\",\"confirmationStatus\":\"NONE\"}";
+        }
+
+        String session = kind != 2 ? "\"session\":{\"new\":true,\"sessionId\":\"check-session\","
+                + "\"application\":{\"applicationId\":\"" + APPLICATION_ID + "\"},"
+                + "\"user\":{\"userId\":\"check-user\",\"permissions\":{\"consentToken\":\"check\"}}}," : "";
+        String envelope = "{\"version\":\"1.0\"," + session + "\"context\":{"
+                + "\"AudioPlayer\":{\"token\":\"" + playingToken + "\",\"offsetInMilliseconds\":0,\"playerActivity\":\"PLAYING\"},"
+                + "\"System\":{\"application\":{\"applicationId\":\"" + APPLICATION_ID + "\"},"
+                + "\"user\":{\"userId\":\"check-user\",\"permissions\":{\"consentToken\":\"check\"}},"
+                + "\"device\":{\"deviceId\":\"amzn1.ask.device.CHECK-" + device + "\",\"supportedInterfaces\":{\"AudioPlayer\":{}}},"
+                + "\"apiEndpoint\":\"" + apiEndpoint + "\",\"apiAccessToken\":\"check\"}},"
+                + "\"request\":{" + requestType + ",\"requestId\":\"check-" + device + "\",\"timestamp\":\""
+                + Instant.ofEpochMilli(timestamp) + "\",\"locale\":\"en-US\"" + extra + "}}";
+
+        JsonObject response = post(skillUrl, envelope).getAsJsonObject("response");
+
+        if(kind == 3){
+            String speech = response.getAsJsonObject("outputSpeech").get("text").getAsString();
+            return speech.equals(deviceTitle) ? null : "help intent said \"" + speech + "\", expected \"" + deviceTitle + "\"";
+        }
+
+        long time = kind == 2 ? timestamp + TimeUnit.MINUTES.toMillis(30) - offset : timestamp;
+        long localTime = time + TimeUnit.SECONDS.toMillis(zone.getRules().getOffset(Instant.ofEpochMilli(time)).getTotalSeconds());
+        if(kind == 2 && HOUR_MS - Math.floorMod(localTime, HOUR_MS) <= TimeUnit.SECONDS.toMillis(5)){
+            localTime += HOUR_MS;
+        }
+        int hour = (int) (Math.floorMod(localTime, DAY_MS) / HOUR_MS);
+
+        JsonObject stream = response.getAsJsonArray("directives").get(0).getAsJsonObject()
+                .getAsJsonObject("audioItem").getAsJsonObject("stream");
+        String url = stream.get("url").getAsString();
+        String token = stream.get("token").getAsString();
+        if(!url.contains("/" + hour + "+(Extended)") || !token.startsWith(title(hour) + "|")){
+            return "got " + token + " for " + zone + ", expected hour " + hour;
+        }
+        return null;
+    }
+
+    private static JsonObject post(URL url, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        if(connection.getResponseCode() != 200){
+            throw new IOException("Skill returned " + connection.getResponseCode());
+        }
+        try (InputStream in = connection.getInputStream()) {
+            return new JsonParser().parse(IOUtils.toString(in, StandardCharsets.UTF_8)).getAsJsonObject();
+        }
+    }
+
+    private static String title(int dayHour){
+        int clockHour = dayHour % 12 == 0 ? 12 : dayHour % 12;
+        return String.format("%02d:00 %s (Extended) - Animal Crossing - New Leaf Music", clockHour, dayHour < 12 ? "AM" : "PM");
+    }
+
+    private static HttpServer startAddressApi() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        // Even devices have a time zone setting, odd ones fall back to their address
+        server.createContext("/v2/devices/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            String deviceId = path.substring("/v2/devices/".length(), path.indexOf('/', "/v2/devices/".length()));
+            int device = Integer.parseInt(deviceId.substring(deviceId.lastIndexOf('-') + 1));
+            if(device % 2 == 1){
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+                return;
+            }
+            byte[] body = ("\"" + ADDRESSES[device % ADDRESSES.length][2] + "\"").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/v1/devices/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            String deviceId = path.substring("/v1/devices/".length(), path.indexOf('/', "/v1/devices/".length()));
+            String[] address = ADDRESSES[Integer.parseInt(deviceId.substring(deviceId.lastIndexOf('-') + 1)) % ADDRESSES.length];
+            byte[] body = ("{\"countryCode\":\"" + address[0] + "\",\"postalCode\":\"" + address[1] + "\"}")
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "check-address-api");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        return server;
+    }
+}
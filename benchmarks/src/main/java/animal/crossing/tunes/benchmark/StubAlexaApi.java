@@ -0,0 +1,48 @@
+package animal.crossing.tunes.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the recorded device address, and the time zone setting of a device at that address,
+ * on localhost so end to end benchmarks never leave the machine.
+ */
+public class StubAlexaApi implements AutoCloseable {
+
+    private final HttpServer server;
+
+    public StubAlexaApi() throws IOException {
+        byte[] address = Recordings.payload("address");
+        byte[] timeZone = "\"America/Los_Angeles\"".getBytes(StandardCharsets.UTF_8);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v2/devices/", exchange -> respond(exchange, timeZone));
+        server.createContext("/v1/devices/", exchange -> respond(exchange, address));
+        server.start();
+    }
+
+    /**
+     * @return the endpoint to use as the envelope's apiEndpoint
+     */
+    public String getEndpoint(){
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private static void respond(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Override
+    public void close(){
+        server.stop(0);
+    }
+}
@@ -0,0 +1,273 @@
+package animal.crossing.tunes.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process stand-ins for the Alexa settings and device address APIs and the Google geocode and timezone APIs,
+ * with configurable latency and injected failures.
+ * <p>
+ * Some devices have a time zone setting, which is the zone of their address. The others answer 204 to the setting,
+ * so the skill falls back to their address.
+ * Every device gets a fixed address derived from its ID: some devices deny the address permission (403),
+ * some are in a country the offline index does not cover so their zone has to come from Google,
+ * and the rest have a postal code the offline index resolves.
+ * Calls are counted per upstream and per request type. The type is carried in the access token
+ * the harness puts in each envelope and followed through the address and coordinates to the Google calls.
+ */
+public class StubUpstreams implements AutoCloseable {
+
+    public static final String TOKEN_PREFIX = "load-harness|";
+
+    private static final String[] OFFLINE_ADDRESSES = {
+            "US,98109", "US,10001", "US,60601", "US,80202", "US,33101", "CA,M5V 3L9", "AU,2000", "BR,01310-100"
+    };
+    private static final String[] OFFLINE_ZONES = {
+            "America/Los_Angeles", "America/New_York", "America/Chicago", "America/Denver", "America/New_York",
+            "America/Toronto", "Australia/Sydney", "America/Sao_Paulo"
+    };
+    private static final String GOOGLE_COUNTRY = "RU";
+    private static final String GOOGLE_ZONE = "Europe/Moscow";
+
+    /**
+     * Stub behaviour. Rates are fractions between 0 and 1.
+     */
+    public static class Config {
+        public LatencyDistribution alexaLatency = LatencyDistribution.parse("lognormal:40:300");
+        public double alexaErrorRate = 0.01;
+        public double timeZoneSettingRate = 0.9;
+        public double forbiddenRate = 0.05;
+        public double googleFraction = 0.1;
+        public int googlePostalCodes = 100;
+        public LatencyDistribution geocodeLatency = LatencyDistribution.parse("lognormal:60:500");
+        public LatencyDistribution timezoneLatency = LatencyDistribution.parse("lognormal:50:400");
+        public double googleErrorRate = 0.01;
+    }
+
+    private final Config config;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final byte[] geocodeTemplate;
+    private final byte[] timezone;
+    private final ConcurrentMap<String, String> typeByAddress = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> typeByCoordinates = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    public StubUpstreams(Config config) throws IOException {
+        this.config = config;
+        this.geocodeTemplate = Recordings.payload("geocode");
+        this.timezone = Recordings.payload("timezone");
+
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "stub-upstream");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.setExecutor(executor);
+        server.createContext("/v2/devices/", this::handleTimeZoneSetting);
+        server.createContext("/v1/devices/", this::handleAddress);
+        server.createContext("/maps/api/geocode/json", this::handleGeocode);
+        server.createContext("/maps/api/timezone/json", this::handleTimezone);
+        server.start();
+    }
+
+    /**
+     * @return the endpoint to use as the envelopes' apiEndpoint
+     */
+    public String getAlexaEndpoint(){
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return the base URL to use for GOOGLE_MAPS_BASE_URL
+     */
+    public String getGoogleBaseUrl(){
+        return getAlexaEndpoint() + "/maps/api/";
+    }
+
+    /**
+     * @return call counts keyed by upstream, request type and outcome, in a stable order
+     */
+    public Map<String, Long> getCounts(){
+        Map<String, Long> counts = new TreeMap<>();
+        counters.forEach((key, count) -> counts.put(key, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public void close(){
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handleTimeZoneSetting(HttpExchange exchange) throws IOException {
+        String deviceId = deviceId(exchange, "/v2/devices/");
+        String type = requestType(exchange);
+
+        sleep(config.alexaLatency);
+        if(ThreadLocalRandom.current().nextDouble() < config.alexaErrorRate){
+            count("settings", type, "500");
+            respond(exchange, 500, "{\"type\":\"SERVICE_ERROR\",\"message\":\"Injected failure\"}");
+            return;
+        }
+
+        long hash = mix(deviceId.hashCode());
+        if(fraction(mix(mix(hash))) >= config.timeZoneSettingRate){
+            count("settings", type, "204");
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+            return;
+        }
+
+        String zone = fraction(mix(hash)) < config.googleFraction ? GOOGLE_ZONE
+                : OFFLINE_ZONES[(int) Math.floorMod(hash, (long) OFFLINE_ZONES.length)];
+        count("settings", type, "200");
+        respond(exchange, 200, "\"" + zone + "\"");
+    }
+
+    private void handleAddress(HttpExchange exchange) throws IOException {
+        String deviceId = deviceId(exchange, "/v1/devices/");
+        String type = requestType(exchange);
+
+        sleep(config.alexaLatency);
+
+        long hash = mix(deviceId.hashCode());
+        if(fraction(hash) < config.forbiddenRate){
+            count("alexa", type, "403");
+            respond(exchange, 403, "{\"type\":\"FORBIDDEN\",\"message\":\"The authentication token is not valid.\"}");
+            return;
+        }
+        if(ThreadLocalRandom.current().nextDouble() < config.alexaErrorRate){
+            count("alexa", type, "500");
+            respond(exchange, 500, "{\"type\":\"SERVICE_ERROR\",\"message\":\"Injected failure\"}");
+            return;
+        }
+
+        String address;
+        if(fraction(mix(hash)) < config.googleFraction){
+            address = GOOGLE_COUNTRY + "," + (100000 + Math.floorMod(hash, (long) config.googlePostalCodes));
+            typeByAddress.put(address, type);
+        } else {
+            address = OFFLINE_ADDRESSES[(int) Math.floorMod(hash, (long) OFFLINE_ADDRESSES.length)];
+        }
+        int comma = address.indexOf(',');
+        count("alexa", type, "200");
+        respond(exchange, 200, "{\"countryCode\":\"" + address.substring(0, comma)
+                + "\",\"postalCode\":\"" + address.substring(comma + 1) + "\"}");
+    }
+
+    private void handleGeocode(HttpExchange exchange) throws IOException {
+        String address = queryParameter(exchange, "address");
+        String type = address != null ? typeByAddress.getOrDefault(address, "unknown") : "unknown";
+
+        sleep(config.geocodeLatency);
+        if(ThreadLocalRandom.current().nextDouble() < config.googleErrorRate){
+            count("geocode", type, "500");
+            respond(exchange, 500, "{\"status\":\"UNKNOWN_ERROR\"}");
+            return;
+        }
+
+        // Give every address its own coordinates so the timezone call can be attributed too
+        double lat = Math.floorMod(mix(String.valueOf(address).hashCode()), 800000L) / 10000.0 - 40;
+        String coordinates = lat + ",-122.3467989";
+        typeByCoordinates.put(coordinates, type);
+
+        String body = new String(geocodeTemplate, StandardCharsets.UTF_8)
+                .replace("47.6338217", String.valueOf(lat));
+        count("geocode", type, "200");
+        respond(exchange, 200, body);
+    }
+
+    private void handleTimezone(HttpExchange exchange) throws IOException {
+        String location = queryParameter(exchange, "location");
+        String type = location != null ? typeByCoordinates.getOrDefault(location, "unknown") : "unknown";
+
+        sleep(config.timezoneLatency);
+        if(ThreadLocalRandom.current().nextDouble() < config.googleErrorRate){
+            count("timezone", type, "500");
+            respond(exchange, 500, "{\"status\":\"UNKNOWN_ERROR\"}");
+            return;
+        }
+
+        count("timezone", type, "200");
+        respond(exchange, 200, timezone);
+    }
+
+    private static String deviceId(HttpExchange exchange, String prefix){
+        String path = exchange.getRequestURI().getPath();
+        return path.substring(prefix.length(), path.indexOf('/', prefix.length()));
+    }
+
+    private static String requestType(HttpExchange exchange){
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        return authorization != null && authorization.contains(TOKEN_PREFIX)
+                ? authorization.substring(authorization.indexOf(TOKEN_PREFIX) + TOKEN_PREFIX.length()) : "unknown";
+    }
+
+    private void count(String upstream, String type, String outcome){
+        counters.computeIfAbsent(upstream + " " + type + " " + outcome, key -> new LongAdder()).increment();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        respond(exchange, status, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String queryParameter(HttpExchange exchange, String name) throws UnsupportedEncodingException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if(query == null){
+            return null;
+        }
+        for(String parameter : query.split("&")){
+            if(parameter.startsWith(name + "=")){
+                return URLDecoder.decode(parameter.substring(name.length() + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+
+    private static void sleep(LatencyDistribution latency){
+        long millis = latency.nextMillis();
+        if(millis <= 0){
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long mix(long value){
+        long mixed = value * 0x9E3779B97F4A7C15L;
+        return mixed ^ (mixed >>> 31);
+    }
+
+    private static double fraction(long hash){
+        return (hash >>> 11) / (double) (1L << 53);
+    }
+}
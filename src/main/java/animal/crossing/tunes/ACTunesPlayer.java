@@ -1,46 +1,102 @@
 package animal.crossing.tunes;
 
-import animal.crossing.tunes.data.DeviceAddress;
-import animal.crossing.tunes.service.AlexaDeviceAddressClient;
-import animal.crossing.tunes.service.GoogleMapsClient;
+import animal.crossing.tunes.cache.DeviceZoneCache;
+import animal.crossing.tunes.cache.NegativeLookupCache;
+import animal.crossing.tunes.cache.PlaybackFailureCache;
+import animal.crossing.tunes.cache.PostalCodeZoneCache;
+import animal.crossing.tunes.catalog.Rendition;
+import animal.crossing.tunes.catalog.TrackCatalog;
+import animal.crossing.tunes.data.DeviceProfile;
+import animal.crossing.tunes.data.PlaybackState;
+import animal.crossing.tunes.data.TrackPlay;
+import animal.crossing.tunes.metrics.RequestMetrics;
+import animal.crossing.tunes.region.Region;
+import animal.crossing.tunes.repository.DeviceProfileRepository;
+import animal.crossing.tunes.service.DeviceTimeResolver;
+import animal.crossing.tunes.service.OfflineTimeZoneResolver;
 import com.amazon.speech.json.SpeechletRequestEnvelope;
 import com.amazon.speech.slu.Intent;
 import com.amazon.speech.speechlet.*;
 import com.amazon.speech.speechlet.interfaces.audioplayer.AudioPlayer;
+import com.amazon.speech.speechlet.interfaces.audioplayer.Error;
+import com.amazon.speech.speechlet.interfaces.audioplayer.ErrorType;
+import com.amazon.speech.speechlet.interfaces.audioplayer.directive.PlayDirective;
 import com.amazon.speech.speechlet.interfaces.audioplayer.directive.StopDirective;
 import com.amazon.speech.speechlet.interfaces.audioplayer.request.*;
-import com.amazon.speech.speechlet.interfaces.system.SystemInterface;
 import com.amazon.speech.speechlet.interfaces.system.SystemState;
 import com.amazon.speech.ui.*;
-import com.google.gson.JsonSyntaxException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class ACTunesPlayer implements AudioPlayer, SpeechletV2 {
     private static final Logger log = LoggerFactory.getLogger(ACTunesPlayer.class);
 
-    private String currentSong;
-    private String deviceTimeOffset;
+    private static final DeviceZoneCache deviceZoneCache = DeviceZoneCache.fromEnvironment();
+    private static final DeviceProfileRepository profileRepository = DeviceProfileRepository.fromEnvironment();
+    private static final PostalCodeZoneCache postalCodeCache = PostalCodeZoneCache.fromEnvironment();
+    private static final DeviceTimeResolver deviceTimeResolver = new DeviceTimeResolver(deviceZoneCache,
+            NegativeLookupCache.fromEnvironment(), postalCodeCache, new OfflineTimeZoneResolver(), profileRepository);
+    private static final PlaybackFailureCache playbackFailureCache = PlaybackFailureCache.fromEnvironment();
 
-    private boolean isLaunch = false;
+    // Failures a lower bitrate can help with: the stream could not be fetched or the device could not keep up with it
+    private static final Set<ErrorType> RENDITION_FALLBACK_ERRORS = EnumSet.of(ErrorType.MEDIA_ERROR_SERVICE_UNAVAILABLE,
+            ErrorType.MEDIA_ERROR_INTERNAL_DEVICE_ERROR, ErrorType.MEDIA_ERROR_UNKNOWN);
 
+    /**
+     * Replays the failed track in the next lower rendition the track has, at the offset for the current local time,
+     * if the error is one a lower bitrate can help with. The device keeps streaming that rendition for a while.
+     */
     @Override
     public SpeechletResponse onPlaybackFailed(SpeechletRequestEnvelope<PlaybackFailedRequest> speechletRequestEnvelope) {
+        RequestMetrics.current().setRequestType("AudioPlayer.PlaybackFailed");
+        PlaybackFailedRequest request = speechletRequestEnvelope.getRequest();
+        Error error = request.getError();
         log.error("Inside onPlaybackFailed() | {} - {} ",
-                speechletRequestEnvelope.getRequest().getError().getMessage(),
-                speechletRequestEnvelope.getRequest().getError().getType().toString());
+                error != null ? error.getMessage() : null, error != null ? error.getType() : null);
 
-        PlaybackFailedRequest intentRequest = speechletRequestEnvelope.getRequest();
+        if(error == null || !RENDITION_FALLBACK_ERRORS.contains(error.getType())){
+            return null;
+        }
 
-        return null;
+        RequestContext context = RequestContext.of(speechletRequestEnvelope);
+        Rendition failedRendition = getRendition(context.deviceId);
+        Rendition lowerRendition = getLowerRendition(request.getToken(), failedRendition);
+        if(lowerRendition == null){
+            log.info("No rendition below {} to fall back to.", failedRendition.getId());
+            return null;
+        }
+
+        log.info("Falling back from the {} rendition to {}.", failedRendition.getId(), lowerRendition.getId());
+        RequestMetrics.current().increment(RequestMetrics.Counter.RENDITION_FALLBACK);
+        playbackFailureCache.putFailure(context.deviceId, lowerRendition);
+        return getPlayAudioResponse(context, request.getToken(), false);
+    }
+
+    /**
+     * @param errorType the type of a PlaybackFailed request's error, may be null
+     * @return whether the player answers the failure with a play directive in a lower rendition
+     */
+    static boolean fallsBackOn(String errorType){
+        for(ErrorType type : RENDITION_FALLBACK_ERRORS){
+            if(type.name().equals(errorType)){
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
     public SpeechletResponse onPlaybackFinished(SpeechletRequestEnvelope<PlaybackFinishedRequest> speechletRequestEnvelope) {
         log.info("Inside onPlaybackFinished()");
+        RequestMetrics.current().setRequestType("AudioPlayer.PlaybackFinished");
 
         PlaybackFinishedRequest intentRequest = speechletRequestEnvelope.getRequest();
 
@@ -50,34 +106,42 @@ public class ACTunesPlayer implements AudioPlayer, SpeechletV2 {
     @Override
     public SpeechletResponse onPlaybackNearlyFinished(SpeechletRequestEnvelope<PlaybackNearlyFinishedRequest> speechletRequestEnvelope) {
         log.info("Inside onPlaybackNearlyFinished()");
+        RequestMetrics.current().setRequestType("AudioPlayer.PlaybackNearlyFinished");
         PlaybackNearlyFinishedRequest intentRequest = speechletRequestEnvelope.getRequest();
 
-        SystemState systemState = getSystemState(speechletRequestEnvelope.getContext());
-
-        TunesUtil.token = intentRequest.getToken();
-
-        Date date = intentRequest.getTimestamp();
-        return getPlayAudioResponse(systemState, date, true);
+        RequestContext context = RequestContext.of(speechletRequestEnvelope);
+        // Recorded first, so the enqueued track's token is the one the profile is left with
+        recordPlayback(context, PlaybackState.NEARLY_FINISHED, intentRequest.getToken(),
+                intentRequest.getOffsetInMilliseconds());
+        return getEnqueueNextResponse(context, intentRequest);
     }
 
+    /**
+     * Records that the track is playing. The device is already streaming the track it was sent,
+     * so sending it again would only restart the stream.
+     */
     @Override
     public SpeechletResponse onPlaybackStarted(SpeechletRequestEnvelope<PlaybackStartedRequest> speechletRequestEnvelope) {
         log.info("Inside onPlaybackStarted()");
+        RequestMetrics.current().setRequestType("AudioPlayer.PlaybackStarted");
+        PlaybackStartedRequest request = speechletRequestEnvelope.getRequest();
 
-        PlaybackStartedRequest intentRequest = speechletRequestEnvelope.getRequest();
-
-        SystemState systemState = getSystemState(speechletRequestEnvelope.getContext());
-
-        TunesUtil.token = intentRequest.getToken();
-
-        Date date = intentRequest.getTimestamp();
-        return getPlayAudioResponse(systemState, date, false);
+        recordPlayback(RequestContext.of(speechletRequestEnvelope), PlaybackState.PLAYING, request.getToken(),
+                request.getOffsetInMilliseconds());
+        return null;
     }
 
+    /**
+     * Records where the track stopped, so a ResumeIntent can continue from there.
+     */
     @Override
     public SpeechletResponse onPlaybackStopped(SpeechletRequestEnvelope<PlaybackStoppedRequest> speechletRequestEnvelope) {
         log.info("Inside onPlaybackStopped()");
+        RequestMetrics.current().setRequestType("AudioPlayer.PlaybackStopped");
+        PlaybackStoppedRequest request = speechletRequestEnvelope.getRequest();
 
+        recordPlayback(RequestContext.of(speechletRequestEnvelope), PlaybackState.STOPPED, request.getToken(),
+                request.getOffsetInMilliseconds());
         return null;
     }
 
@@ -91,6 +155,7 @@ public class ACTunesPlayer implements AudioPlayer, SpeechletV2 {
 
     @Override
     public void onSessionEnded(SpeechletRequestEnvelope<SessionEndedRequest> speechletRequestEnvelope) {
+        RequestMetrics.current().setRequestType("SessionEndedRequest");
         log.info("onSessionEnded requestId={}, sessionId={}",
                 speechletRequestEnvelope.getRequest().getRequestId(),
                 speechletRequestEnvelope.getSession().getSessionId());
@@ -99,6 +164,7 @@ public class ACTunesPlayer implements AudioPlayer, SpeechletV2 {
 
     @Override
     public SpeechletResponse onLaunch(SpeechletRequestEnvelope<LaunchRequest> speechletRequestEnvelope) {
+        RequestMetrics.current().setRequestType("LaunchRequest");
         log.info("onLaunch requestId={}, sessionId={}", speechletRequestEnvelope.getRequest().getRequestId(),
                 speechletRequestEnvelope.getSession().getSessionId());
 
@@ -112,16 +178,15 @@ public class ACTunesPlayer implements AudioPlayer, SpeechletV2 {
                 calendar.get(Calendar.SECOND),
                 calendar.getTimeInMillis());
 
-        SystemState systemState = getSystemState(speechletRequestEnvelope.getContext());
+        RequestContext context = RequestContext.of(speechletRequestEnvelope);
 
-        if(systemState.getUser().getPermissions() == null){
+        if(context.systemState.getUser().getPermissions() == null){
             // Ask the user for permissions in the Alexa app
             log.info("The user hasn't authorized the skill. Sending a permissions card.");
             return getAskPermissionsResponse();
         }
 
-        this.isLaunch = true;
-        return getPlayAudioResponse(systemState, date, false);
+        return getPlayAudioResponse(context, context.audioPlayerToken, false);
     }
 
     @Override
@@ -136,17 +201,18 @@ public class ACTunesPlayer implements AudioPlayer, SpeechletV2 {
             intentName = intent.getName();
             log.info("Intent name: {}", intentName);
         }
+        RequestMetrics.current().setRequestType(intentName != null ? intentName : "IntentRequest");
 
-        Date date = request.getTimestamp();
+        RequestContext context = RequestContext.of(speechletRequestEnvelope);
 
         if("AMAZON.HelpIntent".equals(intentName)){
-            return getHelpResponse();
+            return getHelpResponse(context);
         } else if("AMAZON.StopIntent".equals(intentName) || "AMAZON.PauseIntent".equals(intentName) || "AMAZON.CancelIntent".equals(intentName)){
             return getStopResponse();
         } else if("AMAZON.ResumeIntent".equals(intentName)){
-            return getPlayAudioResponse(getSystemState(speechletRequestEnvelope.getContext()), date, false);
+            return getResumeResponse(context);
         }else {
-            return getPlayAudioResponse(getSystemState(speechletRequestEnvelope.getContext()), date, false);
+            return getPlayAudioResponse(context, context.audioPlayerToken, false);
         }
     }
 
@@ -159,83 +225,269 @@ public class ACTunesPlayer implements AudioPlayer, SpeechletV2 {
         return stopResponse;
     }
 
-    private SpeechletResponse getPlayAudioResponse(SystemState systemState, Date requestDate, boolean playFromBeginning){
+    /**
+     * Continues the device's stopped track from the recorded position while it is still the track for the hour,
+     * otherwise plays the hour's track at the offset for the current time.
+     * The hour's track is also played if the device's profile cannot be loaded within the request's deadline.
+     */
+    private SpeechletResponse getResumeResponse(RequestContext context){
+        DeviceProfile profile = context.deviceId != null ? getDeviceProfile(context.deviceId) : null;
+        if(profile != null && profile.playbackState.isResumable()){
+            TrackPlay track = TunesUtil.getResumedTrack(profile.lastToken, profile.playbackOffset,
+                    profile.playbackUpdatedAt, context.timestamp, context.region, getRendition(context.deviceId));
+            if(track != null){
+                RequestMetrics.current().increment(RequestMetrics.Counter.PLAYBACK_RESUMED);
+                return preparePlayResponse(context.deviceId, track);
+            }
+        }
+        return getPlayAudioResponse(context, context.audioPlayerToken, false);
+    }
+
+    /**
+     * @param token the stream token of the device's current or last track, used for its zone if it has one
+     */
+    private SpeechletResponse getPlayAudioResponse(RequestContext context, String token, boolean playFromBeginning){
 
         SpeechletResponse speechletResponse;
-        if(this.deviceTimeOffset != null){
-            log.info("using cached local device time offset.");
-            long localOffset = Long.valueOf(this.deviceTimeOffset);
-            speechletResponse = TunesUtil.getTune(new Date(requestDate.getTime() + localOffset), playFromBeginning);
-        }else{
+        PlaybackZone zone = getPlaybackZone(context, token);
+
+        if(zone != null){
+            log.info("getPlayAudioResponse received date: {} ms, device time zone is: {}", context.timestamp, zone.zone);
+            TrackPlay track;
+            RequestMetrics.Timer timer = RequestMetrics.current().startTimer(RequestMetrics.Stage.RESPONSE_BUILD);
             try {
-                long localOffset = getDeviceTimeOffset(systemState, requestDate.getTime());
-                log.info("getPlayAudioResponse received date: {} ms, calculated local time offset as: {} ms", requestDate.getTime(), localOffset);
-                speechletResponse = TunesUtil.getTune(new Date(requestDate.getTime() + localOffset), playFromBeginning);
-            } catch (Exception e) {
-                log.error("Error trying to determine device's local time. Defaulting to UTC time.", e);
-                speechletResponse = TunesUtil.getTune(requestDate, false);
-                speechletResponse.setOutputSpeech(getPlainTextOutputSpeech("Error getting device local time. Using default time."));
+                track = TunesUtil.getTrack(context.timestamp, zone.zone, zone.resolved, context.region,
+                        getRendition(context.deviceId), playFromBeginning);
+            } finally {
+                timer.stop();
             }
+            log.info("Device zone cache: {}", deviceZoneCache);
+            return preparePlayResponse(context.deviceId, track);
+        } else {
+            log.error("Unable to determine device's local time. Defaulting to UTC time.");
+            RequestMetrics.Timer timer = RequestMetrics.current().startTimer(RequestMetrics.Stage.RESPONSE_BUILD);
+            try {
+                speechletResponse = TunesUtil.toSpeechletResponse(
+                        TunesUtil.getTrack(context.timestamp, ZoneOffset.UTC, false, context.region,
+                                getRendition(context.deviceId), false));
+            } finally {
+                timer.stop();
+            }
+            speechletResponse.setOutputSpeech(getPlainTextOutputSpeech("Error getting device local time. Using default time."));
         }
-        this.isLaunch = false;
+        log.info("Device zone cache: {}", deviceZoneCache);
+        recordToken(context.deviceId, speechletResponse);
         return speechletResponse;
     }
 
-    private long getDeviceTimeOffset(SystemState systemState, long requestDate) throws IOException, JsonSyntaxException {
-        long local = 0;
+    /**
+     * Queues the track that should follow the one that is nearly finished, starting where the current one ends.
+     * The end of the current track is known from the playback position Alexa reports, and the device's zone
+     * normally comes from the current track's token or the cache, so no lookups are needed.
+     */
+    private SpeechletResponse getEnqueueNextResponse(RequestContext context, PlaybackNearlyFinishedRequest request){
+        PlaybackZone zone = getPlaybackZone(context, request.getToken());
+        if(zone == null){
+            log.error("Unable to determine device's local time. Defaulting to UTC time.");
+            zone = new PlaybackZone(ZoneOffset.UTC, false);
+        }
 
-        String deviceId = systemState.getDevice().getDeviceId();
-        String accessToken = systemState.getApiAccessToken();
-        String apiEndpoint = systemState.getApiEndpoint();
+        long trackEndTime = TunesUtil.getTrackEndTime(context.timestamp, request.getOffsetInMilliseconds(), request.getToken());
+        TrackPlay track;
+        RequestMetrics.Timer timer = RequestMetrics.current().startTimer(RequestMetrics.Stage.RESPONSE_BUILD);
+        try {
+            track = TunesUtil.getNextTrack(trackEndTime, zone.zone, zone.resolved, context.region,
+                    getRendition(context.deviceId), request.getToken());
+        } finally {
+            timer.stop();
+        }
 
-        String addressString = getDeviceLocation(deviceId, accessToken, apiEndpoint);
-        if(addressString != null) {
-            GoogleMapsClient googleClient = new GoogleMapsClient();
-            try {
-                local = googleClient.getDeviceTime(addressString, requestDate);
-                this.deviceTimeOffset = String.valueOf(local);
-            } catch (IOException e) {
-                log.error("SOmethings a BROKE!!!1", e);
-                throw e;
-            } catch (JsonSyntaxException e) {
-                log.error("Error when deserialzing JSON string to POJO", e);
-                throw e;
+        return preparePlayResponse(context.deviceId, track);
+    }
+
+    /**
+     * Hands a plain play directive to the {@link PlayResponseWriter}, which writes it from a pre-encoded template.
+     * @return null, as the response is written by the writer, or the built response if no template fits the track
+     */
+    private SpeechletResponse preparePlayResponse(String deviceId, TrackPlay track){
+        recordToken(deviceId, TunesUtil.getToken(track));
+        if(PlayResponseWriter.supports(track)){
+            PlayResponseWriter.prepare(track);
+            return null;
+        }
+        return TunesUtil.toSpeechletResponse(track);
+    }
+
+    /**
+     * Finds the time zone to play in: the zone in the stream token, then the cached zone, then the resolved zone,
+     * then the fallback zone.
+     * @param token the stream token of the device's current or last track, may be null
+     * @return the zone, or null if none is available
+     */
+    private PlaybackZone getPlaybackZone(RequestContext context, String token){
+        PlaybackToken playbackToken = PlaybackToken.decode(token);
+        if(playbackToken != null && playbackToken.hasUsableZone(context.timestamp)){
+            log.info("Using time zone {} from the stream token.", playbackToken.zone);
+            RequestMetrics.current().increment(RequestMetrics.Counter.TOKEN_ZONE);
+            return new PlaybackZone(playbackToken.zone, true);
+        }
+
+        ZoneId cachedZone = deviceZoneCache.get(context.deviceId);
+        if(cachedZone != null){
+            log.info("using cached device time zone ({}).", cachedZone);
+            RequestMetrics.current().increment(RequestMetrics.Counter.CACHE_HIT);
+            return new PlaybackZone(cachedZone, true);
+        }
+        RequestMetrics.current().increment(RequestMetrics.Counter.CACHE_MISS);
+
+        ZoneId zone = getDeviceZone(context.systemState, context.timestamp, context.interactive);
+        if(zone != null){
+            return new PlaybackZone(zone, true);
+        }
+        zone = getFallbackZone(context.deviceId, context.locale);
+        return zone != null ? new PlaybackZone(zone, false) : null;
+    }
+
+    /**
+     * @param deviceId the device ID, may be null
+     * @return the rendition the device stepped down to after a recent playback failure, or the default rendition
+     */
+    private Rendition getRendition(String deviceId){
+        Rendition rendition = deviceId != null ? playbackFailureCache.get(deviceId) : null;
+        return rendition != null ? rendition : TrackCatalog.getDefaultRendition();
+    }
+
+    /**
+     * @param token the stream token of the track that failed
+     * @param rendition the rendition the track was streamed in
+     * @return the next lower rendition the track has, or null if there is none
+     */
+    private Rendition getLowerRendition(String token, Rendition rendition){
+        PlaybackToken playbackToken = PlaybackToken.decode(token);
+        int track = playbackToken != null ? playbackToken.getTrack() : -1;
+        if(track < 0 && token != null){
+            int separator = token.indexOf('|');
+            track = TrackCatalog.findByTitle(separator >= 0 ? token.substring(0, separator) : token);
+        }
+        if(track >= 0){
+            return TrackCatalog.getLowerRendition(track, rendition);
+        }
+        Rendition[] renditions = Rendition.values();
+        return rendition.ordinal() + 1 < renditions.length ? renditions[rendition.ordinal() + 1] : null;
+    }
+
+    /**
+     * Writes the device profiles saved so far, and the postal code snapshot if one is due.
+     */
+    void flushPendingWrites(){
+        profileRepository.flush();
+        postalCodeCache.saveSnapshotIfDue();
+    }
+
+    private void recordPlayback(RequestContext context, PlaybackState state, String token, long offsetInMilliseconds){
+        if(isRecorded(context.deviceId) && token != null){
+            profileRepository.recordPlayback(context.deviceId, state, token, offsetInMilliseconds, context.timestamp);
+        }
+    }
+
+    private void recordToken(String deviceId, SpeechletResponse speechletResponse){
+        for(Directive directive : speechletResponse.getDirectives()){
+            if(directive instanceof PlayDirective){
+                recordToken(deviceId, ((PlayDirective) directive).getAudioItem().getStream().getToken());
             }
         }
-        return local;
+    }
+
+    private void recordToken(String deviceId, String token){
+        if(isRecorded(deviceId)){
+            profileRepository.recordToken(deviceId, token);
+        }
+    }
+
+    /**
+     * @return whether the device's playback is recorded in its profile,
+     * which it never is for the startup primer's synthetic requests
+     */
+    private static boolean isRecorded(String deviceId){
+        return deviceId != null && !StartupPrimer.PRIMER_DEVICE_ID.equals(deviceId);
     }
 
     /**
-     * Method to call the Alexa API to get the location of the Alexa device.
-     * All parameters are from the request's SystemState
-     * @param accessToken The API access token
-     * @param deviceId The device ID
-     * @param apiEndpoint The API endpoint value
-     * @return A concatenated String of the device's address to use for the Google Maps API.
-     * Or null if there was a permissions issue or an unexpected error.
+     * Waits for the device's time zone for as long as the request's deadline allows.
+     * If the budget runs out the resolution carries on in the background and fills the cache for the next request.
+     * @param interactive whether the user is waiting on the request, which gives its lookups priority
+     * @return the device's zone, or null if it could not be resolved in time
      */
-    private String getDeviceLocation(String deviceId, String accessToken, String apiEndpoint){
-        AlexaDeviceAddressClient addressClient
-                = new AlexaDeviceAddressClient(deviceId, accessToken, apiEndpoint);
+    private ZoneId getDeviceZone(SystemState systemState, long requestDate, boolean interactive) {
+        String deviceId = systemState.getDevice().getDeviceId();
+        String accessToken = systemState.getApiAccessToken();
+        String apiEndpoint = Region.routeApiEndpoint(systemState.getApiEndpoint());
 
-        DeviceAddress deviceAddress = null;
+        CompletableFuture<ZoneId> resolution
+                = deviceTimeResolver.resolveAsync(deviceId, accessToken, apiEndpoint, requestDate, interactive);
+
+        long budget = RequestDeadline.remainingMillis();
+        RequestMetrics.Timer timer = RequestMetrics.current().startTimer(RequestMetrics.Stage.ZONE_WAIT);
         try {
-            deviceAddress = addressClient.getAddress();
-        } catch (IOException e) {
-            log.info("Exception when trying to get device address.", e);
+            return resolution.get(budget, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("Device time zone was not resolved within {} ms. Continuing in the background.", budget);
+            RequestMetrics.current().increment(RequestMetrics.Counter.RESOLUTION_TIMEOUT);
+        } catch (ExecutionException e) {
+            log.error("Error trying to determine device's local time.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            timer.stop();
         }
+        return null;
+    }
 
-        String addressString = null;
-        if(deviceAddress != null){
-            addressString = deviceAddress.countryCode + "," + deviceAddress.postalCode;;
-        }
+    /**
+     * Waits for the device's stored profile for as long as the request's deadline allows.
+     * @return the device's profile, or null if it has none or it could not be loaded in time
+     */
+    private DeviceProfile getDeviceProfile(String deviceId){
+        CompletableFuture<DeviceProfile> load = deviceTimeResolver.getProfileAsync(deviceId);
 
-        return addressString;
+        long budget = RequestDeadline.remainingMillis();
+        RequestMetrics.Timer timer = RequestMetrics.current().startTimer(RequestMetrics.Stage.PROFILE_WAIT);
+        try {
+            return load.get(budget, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("Device profile was not loaded within {} ms.", budget);
+            RequestMetrics.current().increment(RequestMetrics.Counter.PROFILE_TIMEOUT);
+        } catch (ExecutionException e) {
+            log.error("Error loading the device profile.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            timer.stop();
+        }
+        return null;
     }
 
-    private SystemState getSystemState(Context context) {
-        SystemState systemState = context.getState(SystemInterface.class, SystemState.class);
-        return systemState;
+    /**
+     * Picks the best available zone when the device's zone is unknown:
+     * the device's last cached zone even if it expired, then the main zone of the request locale's country.
+     * @return the fallback zone, or null if neither is available
+     */
+    private ZoneId getFallbackZone(String deviceId, Locale locale) {
+        RequestMetrics.current().increment(RequestMetrics.Counter.FALLBACK_ZONE);
+        ZoneId staleZone = deviceZoneCache.getStale(deviceId);
+        if(staleZone != null){
+            log.info("Using stale cached zone {} as fallback.", staleZone);
+            return staleZone;
+        }
+
+        if(locale != null){
+            ZoneId countryZone = deviceTimeResolver.getCountryZone(locale.getCountry());
+            if(countryZone != null){
+                log.info("Using zone {} of locale {} as fallback.", countryZone, locale);
+                return countryZone;
+            }
+        }
+        return null;
     }
 
     /**
@@ -275,14 +527,16 @@ public class ACTunesPlayer implements AudioPlayer, SpeechletV2 {
     }
 
     /**
-     * Creates a {@code SpeechletResponse} for the help intent.
+     * Creates a {@code SpeechletResponse} for the help intent, telling the user which song is playing.
      *
+     * @param context the request's context, holding the device's current track
      * @return SpeechletResponse spoken and visual response for the given intent
      */
-    private SpeechletResponse getHelpResponse() {
+    private SpeechletResponse getHelpResponse(RequestContext context) {
         String speechText = "Unable to get song title";
-        if(this.currentSong != null){
-            speechText = this.currentSong.split("|",2)[0];
+        String trackTitle = context.getTrackTitle();
+        if(trackTitle != null){
+            speechText = trackTitle;
         }
 
         // Create the plain text output
@@ -325,4 +579,18 @@ public class ACTunesPlayer implements AudioPlayer, SpeechletV2 {
 
         return reprompt;
     }
+
+    /**
+     * A zone to play in, and whether it is the device's own zone or only a fallback.
+     * Tokens issued in a fallback zone are not trusted by later callbacks, so the device's zone is resolved again.
+     */
+    private static final class PlaybackZone {
+        private final ZoneId zone;
+        private final boolean resolved;
+
+        private PlaybackZone(ZoneId zone, boolean resolved){
+            this.zone = zone;
+            this.resolved = resolved;
+        }
+    }
 }
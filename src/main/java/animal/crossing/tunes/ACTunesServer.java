@@ -0,0 +1,190 @@
+package animal.crossing.tunes;
+
+import com.amazon.speech.Sdk;
+import com.amazon.speech.speechlet.SpeechletException;
+import com.amazon.speech.speechlet.SpeechletRequestHandler;
+import com.amazon.speech.speechlet.SpeechletRequestHandlerException;
+import com.amazon.speech.speechlet.authentication.SpeechletRequestSignatureVerifier;
+import com.amazon.speech.speechlet.verifier.ApplicationIdSpeechletRequestEnvelopeVerifier;
+import com.amazon.speech.speechlet.verifier.SpeechletRequestEnvelopeVerifier;
+import com.amazon.speech.speechlet.verifier.SpeechletRequestVerifierWrapper;
+import com.amazon.speech.speechlet.verifier.TimestampSpeechletRequestVerifier;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the skill as a long-lived HTTPS endpoint instead of a Lambda function.
+ * Requests are handled concurrently on a fixed thread pool by a single {@link ACTunesPlayer},
+ * which keeps all per-request state in a {@link RequestContext}.
+ * <p>
+ * Configured with SERVER_PORT, SERVER_THREADS and SERVER_KEYSTORE, SERVER_KEYSTORE_PASSWORD and SERVER_KEYSTORE_TYPE.
+ * Without a keystore the server speaks plain HTTP, for running behind a proxy that terminates TLS.
+ * Request signatures are checked as Alexa requires for self-hosted endpoints, unless SERVER_VERIFY_SIGNATURES is false.
+ */
+public class ACTunesServer {
+    private static final Logger log = LoggerFactory.getLogger(ACTunesServer.class);
+
+    // The tolerance Alexa requires endpoints to enforce on request timestamps
+    private static final long TIMESTAMP_TOLERANCE_SECONDS = 150;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final SpeechletRequestHandler speechletRequestHandler;
+    private final ACTunesPlayer player = new ACTunesPlayer();
+    private final boolean verifySignatures;
+
+    private ACTunesServer(HttpServer server, ExecutorService executor, boolean verifySignatures){
+        this.server = server;
+        this.executor = executor;
+        this.verifySignatures = verifySignatures;
+
+        List<SpeechletRequestEnvelopeVerifier> verifiers = new ArrayList<>();
+        verifiers.add(new ApplicationIdSpeechletRequestEnvelopeVerifier(
+                Collections.singleton(ACTunesSpeechletRequestStreamHandler.APPLICATION_ID)));
+        verifiers.add(new SpeechletRequestVerifierWrapper(
+                new TimestampSpeechletRequestVerifier(TIMESTAMP_TOLERANCE_SECONDS, TimeUnit.SECONDS)));
+        this.speechletRequestHandler = new SpeechletRequestHandler(verifiers);
+    }
+
+    /**
+     * Starts a server.
+     * @param port the port to listen on, or 0 for any free port
+     * @param threads the number of requests handled at the same time
+     * @param sslContext the TLS configuration, or null to serve plain HTTP
+     * @param verifySignatures whether to check the Alexa request signature of every request
+     * @return the running server
+     */
+    public static ACTunesServer start(int port, int threads, SSLContext sslContext, boolean verifySignatures)
+            throws IOException {
+        HttpServer httpServer;
+        if(sslContext != null){
+            HttpsServer httpsServer = HttpsServer.create(new InetSocketAddress(port), 0);
+            httpsServer.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+            httpServer = httpsServer;
+        } else {
+            httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                runnable -> new Thread(runnable, "skill-server-" + threadCount.incrementAndGet()));
+
+        ACTunesServer server = new ACTunesServer(httpServer, executor, verifySignatures);
+        StartupPrimer.prime(server.speechletRequestHandler, server.player,
+                ACTunesSpeechletRequestStreamHandler.APPLICATION_ID);
+
+        httpServer.createContext("/", server::handle);
+        httpServer.setExecutor(executor);
+        httpServer.start();
+        log.info("Serving the skill on port {} with {} threads ({})", server.getPort(), threads,
+                sslContext != null ? "HTTPS" : "HTTP");
+        return server;
+    }
+
+    public int getPort(){
+        return server.getAddress().getPort();
+    }
+
+    public void stop(){
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if(!"POST".equals(exchange.getRequestMethod())){
+                respond(exchange, 405, "Only POST is supported");
+                return;
+            }
+
+            byte[] serializedSpeechletRequest = IOUtils.toByteArray(exchange.getRequestBody());
+            if(verifySignatures){
+                SpeechletRequestSignatureVerifier.checkRequestSignature(serializedSpeechletRequest,
+                        exchange.getRequestHeaders().getFirst(Sdk.SIGNATURE_REQUEST_HEADER),
+                        exchange.getRequestHeaders().getFirst(Sdk.SIGNATURE_CERTIFICATE_CHAIN_URL_REQUEST_HEADER));
+            }
+
+            // Buffered so the response can be sent with its length
+            ByteArrayOutputStream serializedSpeechletResponse = new ByteArrayOutputStream(1024);
+            SpeechletInvoker.invoke(speechletRequestHandler, player, serializedSpeechletRequest, null,
+                    serializedSpeechletResponse);
+
+            exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+            exchange.sendResponseHeaders(200, serializedSpeechletResponse.size());
+            try (OutputStream body = exchange.getResponseBody()) {
+                serializedSpeechletResponse.writeTo(body);
+            }
+        } catch (SecurityException | SpeechletRequestHandlerException e) {
+            log.warn("Rejected request: {}", e.getMessage());
+            respond(exchange, 400, "Bad request");
+        } catch (SpeechletException | RuntimeException e) {
+            log.error("Error handling request", e);
+            respond(exchange, 500, "Internal error");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain;charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static SSLContext getSslContext() throws IOException, GeneralSecurityException {
+        String keystore = System.getenv("SERVER_KEYSTORE");
+        if(keystore == null || keystore.isEmpty()){
+            log.warn("SERVER_KEYSTORE is not set. Serving plain HTTP, which Alexa only accepts behind a TLS proxy.");
+            return null;
+        }
+        String password = System.getenv("SERVER_KEYSTORE_PASSWORD");
+        char[] passwordChars = password != null ? password.toCharArray() : new char[0];
+        String type = System.getenv("SERVER_KEYSTORE_TYPE");
+
+        KeyStore keyStore = KeyStore.getInstance(type != null ? type : "PKCS12");
+        try (InputStream in = new FileInputStream(keystore)) {
+            keyStore.load(in, passwordChars);
+        }
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, passwordChars);
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+        return sslContext;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = (int) TunesUtil.getEnvLong("SERVER_PORT", 8443);
+        int threads = (int) TunesUtil.getEnvLong("SERVER_THREADS", 64);
+        boolean verifySignatures = !"false".equalsIgnoreCase(System.getenv("SERVER_VERIFY_SIGNATURES"));
+
+        start(port, threads, getSslContext(), verifySignatures);
+    }
+}
@@ -1,19 +1,114 @@
 package animal.crossing.tunes;
 
-import com.amazon.speech.speechlet.lambda.SpeechletRequestStreamHandler;
+import animal.crossing.tunes.metrics.RequestMetrics;
+import com.amazon.speech.Sdk;
+import com.amazon.speech.json.SpeechletResponseEnvelope;
+import com.amazon.speech.speechlet.SpeechletException;
+import com.amazon.speech.speechlet.SpeechletRequestHandler;
+import com.amazon.speech.speechlet.SpeechletRequestHandlerException;
+import com.amazon.speech.speechlet.lambda.LambdaSpeechletRequestHandler;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
-public class ACTunesSpeechletRequestStreamHandler extends SpeechletRequestStreamHandler {
+public class ACTunesSpeechletRequestStreamHandler implements RequestStreamHandler {
+    private static final Logger log = LoggerFactory.getLogger(ACTunesSpeechletRequestStreamHandler.class);
+
+    static final String APPLICATION_ID = "amzn1.ask.skill.8a578f3f-52cc-45a6-b36e-56d2dc3496a3";
     private static final Set<String> supportedApplicationIds;
 
+    // AudioPlayer events the player answers with an empty response and records nothing for. PlaybackFailed is one
+    // unless the player falls back to a lower rendition for its error type. PlaybackStopped is dispatched so the
+    // player can record where the track stopped.
+    private static final Set<String> NO_OP_EVENT_TYPES = new HashSet<>(Arrays.asList(
+            "AudioPlayer.PlaybackFinished", "AudioPlayer.PlaybackFailed"));
+    private static final byte[] NO_OP_RESPONSE;
+
+    private static final ACTunesPlayer player;
+    private static final SpeechletRequestHandler speechletRequestHandler;
+
     static {
+        long initStart = System.nanoTime();
+
         supportedApplicationIds = new HashSet<String>();
-        supportedApplicationIds.add("amzn1.ask.skill.8a578f3f-52cc-45a6-b36e-56d2dc3496a3");
+        supportedApplicationIds.add(APPLICATION_ID);
+
+        SpeechletResponseEnvelope emptyEnvelope = new SpeechletResponseEnvelope();
+        emptyEnvelope.setVersion(Sdk.VERSION);
+        emptyEnvelope.setUserAgent(PlayResponseWriter.USER_AGENT);
+        try {
+            NO_OP_RESPONSE = emptyEnvelope.toJsonBytes();
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+
+        player = new ACTunesPlayer();
+        speechletRequestHandler = new LambdaSpeechletRequestHandler(supportedApplicationIds);
+
+        // Pay for class loading, TLS and pool setup during init rather than on the first request
+        StartupPrimer.prime(speechletRequestHandler, player, APPLICATION_ID);
+        StartupPrimer.recordInit(initStart);
+    }
+
+    @Override
+    public void handleRequest(InputStream input, OutputStream output, Context context) throws IOException {
+        long invocationStart = System.nanoTime();
+        byte[] serializedSpeechletRequest = IOUtils.toByteArray(input);
+
+        if(!answerNoOpEvent(serializedSpeechletRequest, output)){
+            try {
+                SpeechletInvoker.invoke(speechletRequestHandler, player, serializedSpeechletRequest, context, output);
+            } catch (SpeechletRequestHandlerException | SpeechletException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        StartupPrimer.recordInvocation(invocationStart);
     }
 
-    public ACTunesSpeechletRequestStreamHandler() {
-        super(new ACTunesPlayer(), supportedApplicationIds);
+    /**
+     * Answers the AudioPlayer events the player does nothing for straight from the envelope's request type,
+     * without deserializing the envelope or dispatching it through the SDK. The response is the same empty
+     * envelope the SDK writes for them. Envelopes for another skill, or that cannot be read, are left to the SDK.
+     * @return whether the request was answered
+     */
+    private static boolean answerNoOpEvent(byte[] serializedSpeechletRequest, OutputStream output) throws IOException {
+        EnvelopeHeader header;
+        try {
+            header = EnvelopeHeader.read(serializedSpeechletRequest);
+        } catch (IOException e) {
+            return false;
+        }
+        if(header.type == null || !NO_OP_EVENT_TYPES.contains(header.type)
+                || !supportedApplicationIds.contains(header.applicationId)){
+            return false;
+        }
+        if("AudioPlayer.PlaybackFailed".equals(header.type) && ACTunesPlayer.fallsBackOn(header.errorType)){
+            return false;
+        }
+
+        RequestMetrics metrics = RequestMetrics.start();
+        try {
+            metrics.setRequestType(header.type);
+            if(header.errorType != null){
+                log.error("Playback failed | {} - {} ", header.errorMessage, header.errorType);
+            } else {
+                log.info("Answered {} without dispatching it.", header.type);
+            }
+            output.write(NO_OP_RESPONSE);
+        } finally {
+            metrics.flush();
+            RequestMetrics.clear();
+        }
+        return true;
     }
 }
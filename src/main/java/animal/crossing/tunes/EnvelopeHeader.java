@@ -0,0 +1,143 @@
+package animal.crossing.tunes;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The few fields of a request envelope needed to route it: the request type and the application ID,
+ * plus the error of a PlaybackFailed request for logging.
+ * They are read from the JSON stream without deserializing the envelope, and reading stops as soon as they are found.
+ */
+final class EnvelopeHeader {
+
+    String type;
+    String applicationId;
+    String errorType;
+    String errorMessage;
+
+    private EnvelopeHeader(){
+    }
+
+    /**
+     * @param serializedSpeechletRequest the request envelope
+     * @return the header, with null fields for anything the envelope does not have
+     * @throws IOException if the envelope is not valid JSON
+     */
+    static EnvelopeHeader read(byte[] serializedSpeechletRequest) throws IOException {
+        EnvelopeHeader header = new EnvelopeHeader();
+
+        // Decoding up front is cheaper than an InputStreamReader and its 8 KB buffer for an envelope of a few KB
+        try (JsonReader reader = new JsonReader(new StringReader(
+                new String(serializedSpeechletRequest, StandardCharsets.UTF_8)))) {
+            reader.beginObject();
+            while (reader.hasNext() && (header.type == null || header.applicationId == null)) {
+                switch (reader.nextName()) {
+                    case "request":
+                        readRequest(reader, header);
+                        break;
+                    case "context":
+                        readContext(reader, header);
+                        break;
+                    case "session":
+                        readSession(reader, header);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed request envelope", e);
+        }
+
+        return header;
+    }
+
+    private static void readRequest(JsonReader reader, EnvelopeHeader header) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "type":
+                    header.type = nextString(reader);
+                    break;
+                case "error":
+                    readError(reader, header);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readError(JsonReader reader, EnvelopeHeader header) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "type":
+                    header.errorType = nextString(reader);
+                    break;
+                case "message":
+                    header.errorMessage = nextString(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readContext(JsonReader reader, EnvelopeHeader header) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("System".equals(reader.nextName())) {
+                readApplicationHolder(reader, header);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readSession(JsonReader reader, EnvelopeHeader header) throws IOException {
+        if (header.applicationId != null) {
+            reader.skipValue();
+            return;
+        }
+        readApplicationHolder(reader, header);
+    }
+
+    /**
+     * Reads an object with an {@code application} member, such as {@code context.System} or {@code session}.
+     */
+    private static void readApplicationHolder(JsonReader reader, EnvelopeHeader header) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("application".equals(reader.nextName())) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("applicationId".equals(reader.nextName())) {
+                        header.applicationId = nextString(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.STRING) {
+            return reader.nextString();
+        }
+        reader.skipValue();
+        return null;
+    }
+}
@@ -0,0 +1,191 @@
+package animal.crossing.tunes;
+
+import animal.crossing.tunes.catalog.Rendition;
+import animal.crossing.tunes.catalog.TrackCatalog;
+import animal.crossing.tunes.data.TrackPlay;
+import animal.crossing.tunes.region.Region;
+import com.amazon.speech.Sdk;
+import com.amazon.speech.json.SpeechletResponseEnvelope;
+import com.amazon.speech.speechlet.interfaces.audioplayer.PlayBehavior;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes play directive responses from pre-encoded templates, one per region, rendition, catalog track and play behavior,
+ * patching in only the token suffix, the expected previous token and the offset.
+ * <p>
+ * Each template is rendered on first use through the SDK's own serializer with marker values in place of the patched
+ * fields, so the bytes are exactly what the generic path would produce, and cold starts only pay for the templates
+ * their requests need.
+ * The player hands a track over with {@link #prepare} instead of returning a response object,
+ * and the invoker writes it after the SDK has dispatched the request.
+ */
+public final class PlayResponseWriter {
+
+    private static final String TOKEN_MARKER = "@@token@@";
+    private static final String PREVIOUS_TOKEN_MARKER = "@@previous-token@@";
+    private static final long OFFSET_MARKER = 918273645546372819L;
+
+    static final String USER_AGENT = "ask-java/" + Sdk.SDK_VERSION + " Java/" + System.getProperty("java.version");
+
+    private static final Template[][][] REPLACE_ALL
+            = new Template[Region.values().length][Rendition.values().length][TrackCatalog.size()];
+    private static final Template[][][] ENQUEUE
+            = new Template[Region.values().length][Rendition.values().length][TrackCatalog.size()];
+
+    private static final ThreadLocal<TrackPlay> prepared = new ThreadLocal<>();
+
+    private PlayResponseWriter(){
+    }
+
+    /**
+     * @param track a track
+     * @return whether the track can be written from a template
+     */
+    public static boolean supports(TrackPlay track){
+        return track.playBehavior == PlayBehavior.REPLACE_ALL
+                || (track.playBehavior == PlayBehavior.ENQUEUE && track.expectedPreviousToken != null);
+    }
+
+    /**
+     * Hands the response for the request being handled on this thread over to the writer.
+     * @param track a track the writer {@link #supports}
+     */
+    public static void prepare(TrackPlay track){
+        prepared.set(track);
+    }
+
+    /**
+     * @return the track prepared on this thread, or null. The thread is cleared either way.
+     */
+    public static TrackPlay takePrepared(){
+        TrackPlay track = prepared.get();
+        prepared.remove();
+        return track;
+    }
+
+    /**
+     * Writes the complete response envelope for a track.
+     */
+    public static void write(TrackPlay track, OutputStream output) throws IOException {
+        Template template = getTemplate(track);
+        for(int i = 0; i < template.fields.length; i++){
+            output.write(template.parts[i]);
+            switch (template.fields[i]) {
+                case TOKEN:
+                    output.write(track.tokenSuffix.getBytes(StandardCharsets.UTF_8));
+                    break;
+                case PREVIOUS_TOKEN:
+                    output.write(escape(track.expectedPreviousToken));
+                    break;
+                default:
+                    output.write(Long.toString(track.offsetInMilliseconds).getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        output.write(template.parts[template.fields.length]);
+    }
+
+    private enum Field { TOKEN, PREVIOUS_TOKEN, OFFSET }
+
+    private static class Template {
+        private final byte[][] parts;
+        private final Field[] fields;
+
+        private Template(byte[][] parts, Field[] fields){
+            this.parts = parts;
+            this.fields = fields;
+        }
+    }
+
+    private static Template getTemplate(TrackPlay track){
+        boolean enqueue = track.playBehavior == PlayBehavior.ENQUEUE;
+        Template[] templates = (enqueue ? ENQUEUE : REPLACE_ALL)[track.region.ordinal()][track.rendition.ordinal()];
+        Template template = templates[track.track];
+        if(template == null){
+            // Threads racing on the first use render identical templates, and the final fields make them safe to share
+            template = render(new TrackPlay(track.track, track.region, track.rendition, OFFSET_MARKER,
+                    track.playBehavior, TOKEN_MARKER, enqueue ? PREVIOUS_TOKEN_MARKER : null));
+            templates[track.track] = template;
+        }
+        return template;
+    }
+
+    private static Template render(TrackPlay track){
+        SpeechletResponseEnvelope envelope = new SpeechletResponseEnvelope();
+        envelope.setVersion(Sdk.VERSION);
+        envelope.setResponse(TunesUtil.toSpeechletResponse(track));
+        envelope.setUserAgent(USER_AGENT);
+
+        String json;
+        try {
+            json = envelope.toJsonString();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        List<byte[]> parts = new ArrayList<>();
+        List<Field> fields = new ArrayList<>();
+        int position = 0;
+        while(true){
+            int token = json.indexOf(TOKEN_MARKER, position);
+            int previousToken = json.indexOf(PREVIOUS_TOKEN_MARKER, position);
+            int offset = json.indexOf(Long.toString(OFFSET_MARKER), position);
+
+            int next = Integer.MAX_VALUE;
+            Field field = null;
+            int length = 0;
+            if(token >= 0 && token < next){ next = token; field = Field.TOKEN; length = TOKEN_MARKER.length(); }
+            if(previousToken >= 0 && previousToken < next){ next = previousToken; field = Field.PREVIOUS_TOKEN; length = PREVIOUS_TOKEN_MARKER.length(); }
+            if(offset >= 0 && offset < next){ next = offset; field = Field.OFFSET; length = Long.toString(OFFSET_MARKER).length(); }
+            if(field == null){
+                break;
+            }
+            parts.add(json.substring(position, next).getBytes(StandardCharsets.UTF_8));
+            fields.add(field);
+            position = next + length;
+        }
+        parts.add(json.substring(position).getBytes(StandardCharsets.UTF_8));
+
+        return new Template(parts.toArray(new byte[0][]), fields.toArray(new Field[0]));
+    }
+
+    /**
+     * Encodes a string as the contents of a JSON string literal, the way Jackson does.
+     */
+    private static byte[] escape(String value){
+        boolean plain = true;
+        for(int i = 0; i < value.length() && plain; i++){
+            char c = value.charAt(i);
+            plain = c != '"' && c != '\\' && c >= ' ';
+        }
+        if(plain){
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        StringBuilder escaped = new StringBuilder(value.length() + 16);
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': escaped.append("\\\""); break;
+                case '\\': escaped.append("\\\\"); break;
+                case '\b': escaped.append("\\b"); break;
+                case '\t': escaped.append("\\t"); break;
+                case '\n': escaped.append("\\n"); break;
+                case '\f': escaped.append("\\f"); break;
+                case '\r': escaped.append("\\r"); break;
+                default:
+                    if(c < ' '){
+                        escaped.append(String.format("\\u%04X", (int) c));
+                    } else {
+                        escaped.append(c);
+                    }
+            }
+        }
+        return escaped.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,115 @@
+package animal.crossing.tunes;
+
+import animal.crossing.tunes.catalog.TrackCatalog;
+
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * The state a play directive was built from, carried in its stream token so that AudioPlayer callbacks
+ * can work out the next track from the token alone, without resolving the device's time zone again.
+ * <p>
+ * A token is {@code <title>|2.<slot>.<r|f>.<zone>.<issued at>.<checksum>}. The catalog slot, issue time and checksum
+ * are base 36, {@code r} marks a zone resolved for the device and {@code f} a fallback zone, and the checksum is a CRC32
+ * of everything before it. Tokens in any other format, such as the ones issued before this format, do not decode.
+ */
+public final class PlaybackToken {
+
+    private static final String VERSION = "2";
+    private static final char SEPARATOR = '.';
+    private static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(
+            TunesUtil.getEnvLong("PLAYBACK_TOKEN_MAX_AGE_MINUTES", TimeUnit.DAYS.toMinutes(7)));
+    private static final long CLOCK_SKEW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /** The track's {@link TrackCatalog} slot */
+    public final int slot;
+    public final ZoneId zone;
+    public final boolean zoneResolved;
+    /** The time in milliseconds the token's track was scheduled to start playing */
+    public final long issuedAt;
+
+    private PlaybackToken(int slot, ZoneId zone, boolean zoneResolved, long issuedAt){
+        this.slot = slot;
+        this.zone = zone;
+        this.zoneResolved = zoneResolved;
+        this.issuedAt = issuedAt;
+    }
+
+    /**
+     * Builds the part of a token after its title.
+     * @param tokenPrefix the title and separator the suffix is appended to, covered by the checksum
+     * @param slot the catalog slot of the track
+     * @param zone the zone the track was picked in
+     * @param zoneResolved whether the zone is the device's own rather than a fallback
+     * @param issuedAt the time in milliseconds the track starts playing
+     * @return the token suffix
+     */
+    static String encodeSuffix(String tokenPrefix, int slot, ZoneId zone, boolean zoneResolved, long issuedAt){
+        String suffix = VERSION + SEPARATOR + Integer.toString(slot, 36) + SEPARATOR + (zoneResolved ? 'r' : 'f')
+                + SEPARATOR + zone.getId() + SEPARATOR + Long.toString(issuedAt, 36);
+        return suffix + SEPARATOR + Long.toString(checksum(tokenPrefix + suffix), 36);
+    }
+
+    /**
+     * @param token a stream token, may be null
+     * @return the decoded token, or null if the token is missing, in another format or fails its checksum
+     */
+    public static PlaybackToken decode(String token){
+        if(token == null){
+            return null;
+        }
+        int start = token.indexOf('|') + 1;
+        if(start == 0 || !token.startsWith(VERSION + SEPARATOR, start)){
+            return null;
+        }
+        int slotEnd = token.indexOf(SEPARATOR, start + VERSION.length() + 1);
+        int flagEnd = slotEnd < 0 ? -1 : token.indexOf(SEPARATOR, slotEnd + 1);
+        int checksumStart = token.lastIndexOf(SEPARATOR);
+        int issuedStart = token.lastIndexOf(SEPARATOR, checksumStart - 1);
+        if(flagEnd != slotEnd + 2 || issuedStart <= flagEnd){
+            return null;
+        }
+
+        try {
+            if(Long.parseLong(token.substring(checksumStart + 1), 36) != checksum(token.substring(0, checksumStart))){
+                return null;
+            }
+            int slot = Integer.parseInt(token.substring(start + VERSION.length() + 1, slotEnd), 36);
+            char flag = token.charAt(slotEnd + 1);
+            ZoneId zone = ZoneId.of(token.substring(flagEnd + 1, issuedStart));
+            long issuedAt = Long.parseLong(token.substring(issuedStart + 1, checksumStart), 36);
+            if(TrackCatalog.findBySlot(slot) < 0 || (flag != 'r' && flag != 'f')){
+                return null;
+            }
+            return new PlaybackToken(slot, zone, flag == 'r', issuedAt);
+        } catch (NumberFormatException | DateTimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A token's zone can stand in for the device's zone if it was resolved for the device, and the token is
+     * recent enough that the device is unlikely to have moved. PLAYBACK_TOKEN_MAX_AGE_MINUTES sets how recent.
+     * @param timestamp the request's timestamp in milliseconds
+     * @return whether the zone can be used without resolving the device's zone
+     */
+    public boolean hasUsableZone(long timestamp){
+        return zoneResolved && issuedAt - CLOCK_SKEW_MILLIS <= timestamp && timestamp - issuedAt <= MAX_AGE_MILLIS;
+    }
+
+    /**
+     * @return the catalog track the token's slot plays
+     */
+    public int getTrack(){
+        return TrackCatalog.findBySlot(slot);
+    }
+
+    private static long checksum(String value){
+        CRC32 crc = new CRC32();
+        crc.update(value.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+}
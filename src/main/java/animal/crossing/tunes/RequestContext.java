@@ -0,0 +1,78 @@
+package animal.crossing.tunes;
+
+import animal.crossing.tunes.region.Region;
+import com.amazon.speech.json.SpeechletRequestEnvelope;
+import com.amazon.speech.speechlet.Context;
+import com.amazon.speech.speechlet.IntentRequest;
+import com.amazon.speech.speechlet.LaunchRequest;
+import com.amazon.speech.speechlet.SpeechletRequest;
+import com.amazon.speech.speechlet.interfaces.audioplayer.AudioPlayerInterface;
+import com.amazon.speech.speechlet.interfaces.audioplayer.AudioPlayerState;
+import com.amazon.speech.speechlet.interfaces.system.SystemInterface;
+import com.amazon.speech.speechlet.interfaces.system.SystemState;
+
+import java.util.Locale;
+
+/**
+ * The state of one request that the player needs while building its response.
+ * A new context is created for every request, so concurrent requests never see each other's device or track.
+ */
+public final class RequestContext {
+
+    public final SystemState systemState;
+    public final String deviceId;
+    public final long timestamp;
+    public final Locale locale;
+    /** The token of the track the device is playing or last played, or null */
+    public final String audioPlayerToken;
+    /** The region of the request's apiEndpoint, which picks the audio origin to stream from */
+    public final Region region;
+    /** Whether the user is waiting on the response, as for a launch or an intent, rather than an AudioPlayer event */
+    public final boolean interactive;
+
+    private RequestContext(SystemState systemState, long timestamp, Locale locale, String audioPlayerToken,
+                           boolean interactive){
+        this.systemState = systemState;
+        this.deviceId = systemState != null && systemState.getDevice() != null
+                ? systemState.getDevice().getDeviceId() : null;
+        this.timestamp = timestamp;
+        this.locale = locale;
+        this.audioPlayerToken = audioPlayerToken;
+        this.region = Region.of(systemState != null ? systemState.getApiEndpoint() : null);
+        this.interactive = interactive;
+    }
+
+    /**
+     * @param envelope the request envelope
+     * @return the context of the envelope's request
+     */
+    public static RequestContext of(SpeechletRequestEnvelope<? extends SpeechletRequest> envelope){
+        SpeechletRequest request = envelope.getRequest();
+        Context context = envelope.getContext();
+
+        SystemState systemState = null;
+        String audioPlayerToken = null;
+        if(context != null){
+            systemState = context.getState(SystemInterface.class, SystemState.class);
+            AudioPlayerState audioPlayerState = context.getState(AudioPlayerInterface.class, AudioPlayerState.class);
+            if(audioPlayerState != null){
+                audioPlayerToken = audioPlayerState.getToken();
+            }
+        }
+
+        boolean interactive = request instanceof LaunchRequest || request instanceof IntentRequest;
+        return new RequestContext(systemState, request.getTimestamp().getTime(), request.getLocale(), audioPlayerToken,
+                interactive);
+    }
+
+    /**
+     * @return the title of the track in {@link #audioPlayerToken}, or null if there is no token
+     */
+    public String getTrackTitle(){
+        if(audioPlayerToken == null || audioPlayerToken.isEmpty()){
+            return null;
+        }
+        int separator = audioPlayerToken.indexOf('|');
+        return separator >= 0 ? audioPlayerToken.substring(0, separator) : audioPlayerToken;
+    }
+}
@@ -0,0 +1,45 @@
+package animal.crossing.tunes;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+/**
+ * Tracks how much time the current request has left to produce a response.
+ * The deadline is taken from the Lambda context when the request arrives and is bound to the handling thread.
+ */
+public final class RequestDeadline {
+
+    private static final long MAX_BUDGET_MS = TunesUtil.getEnvLong("RESOLUTION_BUDGET_MS", 3000);
+    private static final long SAFETY_MARGIN_MS = TunesUtil.getEnvLong("DEADLINE_SAFETY_MARGIN_MS", 1000);
+
+    private static final ThreadLocal<Long> deadline = new ThreadLocal<>();
+
+    private RequestDeadline(){
+    }
+
+    /**
+     * Starts the budget for the request being handled on this thread.
+     * @param context the Lambda context, or null when running outside of Lambda
+     */
+    public static void start(Context context){
+        long budget = MAX_BUDGET_MS;
+        if(context != null){
+            budget = Math.min(budget, context.getRemainingTimeInMillis() - SAFETY_MARGIN_MS);
+        }
+        deadline.set(System.currentTimeMillis() + Math.max(0, budget));
+    }
+
+    /**
+     * @return the milliseconds left before the response has to be sent
+     */
+    public static long remainingMillis(){
+        Long end = deadline.get();
+        if(end == null){
+            return MAX_BUDGET_MS;
+        }
+        return Math.max(0, end - System.currentTimeMillis());
+    }
+
+    public static void clear(){
+        deadline.remove();
+    }
+}
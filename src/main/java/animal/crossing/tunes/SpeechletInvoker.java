@@ -0,0 +1,55 @@
+package animal.crossing.tunes;
+
+import animal.crossing.tunes.data.TrackPlay;
+import animal.crossing.tunes.metrics.RequestMetrics;
+import com.amazon.speech.speechlet.SpeechletException;
+import com.amazon.speech.speechlet.SpeechletRequestHandler;
+import com.amazon.speech.speechlet.SpeechletRequestHandlerException;
+import com.amazonaws.services.lambda.runtime.Context;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Dispatches one serialized request to the speechlet with the request's deadline and metrics bound to the calling
+ * thread, and writes the response. Shared by the Lambda handler and the embedded server, so both run requests the same way.
+ * Play directives the speechlet prepared with {@link PlayResponseWriter} are written from their templates
+ * instead of the SDK's serialized response. Device profiles saved during the request, and a due postal code snapshot,
+ * are written before returning, since a Lambda container may be frozen, and later reclaimed, as soon as the handler returns.
+ */
+final class SpeechletInvoker {
+
+    private SpeechletInvoker(){
+    }
+
+    /**
+     * @param context the Lambda context, or null when not running in Lambda
+     * @param output the stream the serialized response is written to
+     */
+    static void invoke(SpeechletRequestHandler speechletRequestHandler, ACTunesPlayer player,
+                       byte[] serializedSpeechletRequest, Context context, OutputStream output)
+            throws IOException, SpeechletRequestHandlerException, SpeechletException {
+        // The deadline has to be started before dispatching so the player can budget its lookups
+        RequestDeadline.start(context);
+        RequestMetrics metrics = RequestMetrics.start();
+        RequestMetrics.Timer envelopeTimer = metrics.startTimer(RequestMetrics.Stage.ENVELOPE);
+        try {
+            byte[] serializedSpeechletResponse
+                    = speechletRequestHandler.handleSpeechletCall(player, serializedSpeechletRequest);
+
+            TrackPlay track = PlayResponseWriter.takePrepared();
+            if(track != null){
+                PlayResponseWriter.write(track, output);
+            } else {
+                output.write(serializedSpeechletResponse);
+            }
+        } finally {
+            envelopeTimer.stop();
+            PlayResponseWriter.takePrepared();
+            player.flushPendingWrites();
+            RequestDeadline.clear();
+            metrics.flush();
+            RequestMetrics.clear();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package animal.crossing.tunes;
+
+import animal.crossing.tunes.catalog.TrackCatalog;
+import animal.crossing.tunes.data.TrackPlay;
+import animal.crossing.tunes.region.Region;
+import animal.crossing.tunes.service.DeviceAddressParser;
+import animal.crossing.tunes.service.GeocodeResponseParser;
+import animal.crossing.tunes.service.SharedHttpClient;
+import animal.crossing.tunes.service.TimezoneResponseParser;
+import com.amazon.speech.speechlet.SpeechletRequestHandler;
+import com.amazon.speech.speechlet.SpeechletV2;
+import com.google.gson.stream.JsonReader;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.http.client.methods.HttpHead;
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Does the expensive one-time work of a cold start while the handler class is initialized,
+ * before the first real request is waiting on it: class loading of the JSON, HTTP and logging libraries,
+ * SecureRandom and TLS setup, the HTTP connection pool and a synthetic pass through the player.
+ * It also re-seeds randomness and re-opens connections when the process is restored from a snapshot,
+ * and logs a report of the init and first invocation times.
+ */
+public final class StartupPrimer implements Resource {
+    private static final Logger log = LoggerFactory.getLogger(StartupPrimer.class);
+
+    static final String PRIMER_DEVICE_ID = "amzn1.ask.device.STARTUP-PRIMER";
+
+    // CRaC only keeps weak references to registered resources
+    private static final StartupPrimer INSTANCE = new StartupPrimer();
+
+    // Seeded while priming, so every process restored from a snapshot starts with the same state until re-seeded
+    private static final SecureRandom secureRandom = new SecureRandom();
+
+    private static final AtomicBoolean firstInvocation = new AtomicBoolean(true);
+    private static long initMillis;
+    private static long primingMillis;
+
+    private StartupPrimer(){
+    }
+
+    /**
+     * Primes the skill. Failures are logged and never stop the handler from loading.
+     * @param speechletRequestHandler the handler the synthetic requests are sent through
+     * @param speechlet the speechlet handling the synthetic requests
+     * @param applicationId a supported application ID for the synthetic requests
+     */
+    public static void prime(SpeechletRequestHandler speechletRequestHandler, SpeechletV2 speechlet, String applicationId){
+        long start = System.nanoTime();
+        try {
+            secureRandom.nextBytes(new byte[16]);
+            SSLContext.getDefault();
+
+            GeocodeResponseParser.INSTANCE.parse(new JsonReader(new StringReader(
+                    "{\"results\":[{\"geometry\":{\"location\":{\"lat\":47.6,\"lng\":-122.3}}}],\"status\":\"OK\"}")));
+            TimezoneResponseParser.INSTANCE.parse(new JsonReader(new StringReader(
+                    "{\"dstOffset\":0,\"rawOffset\":-28800,\"status\":\"OK\",\"timeZoneId\":\"America/Los_Angeles\"}")));
+            DeviceAddressParser.INSTANCE.parse(new JsonReader(new StringReader(
+                    "{\"countryCode\":\"US\",\"postalCode\":\"98109\"}")));
+
+            SharedHttpClient.getClient();
+            warmConnections();
+
+            for(String envelope : getSyntheticEnvelopes(applicationId)){
+                EnvelopeHeader.read(envelope.getBytes(StandardCharsets.UTF_8));
+                speechletRequestHandler.handleSpeechletCall(speechlet, envelope.getBytes(StandardCharsets.UTF_8));
+                TrackPlay track = PlayResponseWriter.takePrepared();
+                if(track != null){
+                    PlayResponseWriter.write(track, NullOutputStream.NULL_OUTPUT_STREAM);
+                }
+            }
+
+            Core.getGlobalContext().register(INSTANCE);
+        } catch (Exception e) {
+            log.warn("Startup priming failed. The first request will pay for the remaining initialization.", e);
+        }
+        primingMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Records how long the handler's static initialization took, including priming.
+     * @param initStartNanos the {@link System#nanoTime()} when initialization started
+     */
+    public static void recordInit(long initStartNanos){
+        initMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - initStartNanos);
+        log.info("Handler initialized in {} ms (priming {} ms)", initMillis, primingMillis);
+    }
+
+    /**
+     * Logs the cold start report once, after the first real invocation.
+     * @param invocationStartNanos the {@link System#nanoTime()} when the invocation started
+     */
+    public static void recordInvocation(long invocationStartNanos){
+        if(firstInvocation.compareAndSet(true, false)){
+            long firstInvokeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - invocationStartNanos);
+            log.info("Cold start report: init={} ms, priming={} ms, firstInvoke={} ms, {}",
+                    initMillis, primingMillis, firstInvokeMillis, SharedHttpClient.getPoolStats());
+        }
+    }
+
+    @Override
+    public void beforeCheckpoint(Context<? extends Resource> context) {
+        log.info("Closing pooled connections before checkpoint.");
+        SharedHttpClient.reset();
+    }
+
+    @Override
+    public void afterRestore(Context<? extends Resource> context) {
+        long start = System.nanoTime();
+
+        // Every process restored from the same snapshot starts with the same random state
+        secureRandom.setSeed(secureRandom.generateSeed(16));
+
+        SharedHttpClient.reset();
+        SharedHttpClient.getClient();
+        warmConnections();
+
+        firstInvocation.set(true);
+        initMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.info("Restored from snapshot in {} ms", initMillis);
+    }
+
+    /**
+     * Opens pooled connections to the URLs in the comma separated PRIME_URLS environment variable,
+     * so the first lookups reuse an established TLS session.
+     */
+    private static void warmConnections(){
+        String urls = System.getenv("PRIME_URLS");
+        if(urls == null || urls.isEmpty()){
+            return;
+        }
+        for(String url : urls.split(",")){
+            try {
+                SharedHttpClient.getClient().execute(new HttpHead(url.trim()), response -> null);
+            } catch (Exception e) {
+                log.info("Could not warm a connection to {}: {}", url, e.toString());
+            }
+        }
+        log.info("Warmed connections. HTTP pool: {}", SharedHttpClient.getPoolStats());
+    }
+
+    /**
+     * The playback event carries a token for the current hour's track with a resolved zone, so it takes the
+     * token's zone instead of resolving the primer device's zone against an API endpoint it does not have.
+     */
+    private static String[] getSyntheticEnvelopes(String applicationId){
+        Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        String timestamp = now.toString();
+        String token = TunesUtil.getToken(TunesUtil.getTrack(now.toEpochMilli(), ZoneOffset.UTC, true, Region.DEFAULT,
+                TrackCatalog.getDefaultRendition(), false));
+        String system = "\"System\":{\"application\":{\"applicationId\":\"" + applicationId + "\"},"
+                + "\"user\":{\"userId\":\"amzn1.ask.account.STARTUP-PRIMER\"},"
+                + "\"device\":{\"deviceId\":\"" + PRIMER_DEVICE_ID + "\",\"supportedInterfaces\":{\"AudioPlayer\":{}}},"
+                + "\"apiEndpoint\":\"\",\"apiAccessToken\":\"\"}";
+        String session = "\"session\":{\"new\":true,\"sessionId\":\"amzn1.echo-api.session.STARTUP-PRIMER\","
+                + "\"application\":{\"applicationId\":\"" + applicationId + "\"},"
+                + "\"user\":{\"userId\":\"amzn1.ask.account.STARTUP-PRIMER\"}}";
+
+        return new String[]{
+                "{\"version\":\"1.0\"," + session + ",\"context\":{" + system + "},"
+                        + "\"request\":{\"type\":\"IntentRequest\",\"requestId\":\"amzn1.echo-api.request.STARTUP-PRIMER\","
+                        + "\"timestamp\":\"" + timestamp + "\",\"locale\":\"en-US\","
+                        + "\"intent\":{\"name\":\"AMAZON.HelpIntent\",\"slots\":{}}}}",
+                "{\"version\":\"1.0\",\"context\":{" + system + "},"
+                        + "\"request\":{\"type\":\"AudioPlayer.PlaybackNearlyFinished\",\"requestId\":\"amzn1.echo-api.request.STARTUP-PRIMER\","
+                        + "\"timestamp\":\"" + timestamp + "\",\"locale\":\"en-US\","
+                        + "\"token\":\"" + token + "\",\"offsetInMilliseconds\":0}}",
+        };
+    }
+}
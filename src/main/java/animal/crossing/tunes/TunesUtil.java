@@ -1,5 +1,10 @@
 package animal.crossing.tunes;
 
+import animal.crossing.tunes.catalog.Rendition;
+import animal.crossing.tunes.catalog.TrackCatalog;
+import animal.crossing.tunes.catalog.Weather;
+import animal.crossing.tunes.data.TrackPlay;
+import animal.crossing.tunes.region.Region;
 import com.amazon.speech.speechlet.Directive;
 import com.amazon.speech.speechlet.SpeechletResponse;
 import com.amazon.speech.speechlet.interfaces.audioplayer.AudioItem;
@@ -11,71 +16,194 @@ import com.amazon.speech.ui.SimpleCard;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.sql.Time;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 
 public class TunesUtil {
     private static final Logger log = LoggerFactory.getLogger(TunesUtil.class);
 
-    public static String token;
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+    private static final long UNKNOWN_TRACK_LENGTH_MS = TimeUnit.MINUTES.toMillis(30);
+    private static final long HOUR_BOUNDARY_TOLERANCE_MS = TimeUnit.SECONDS.toMillis(5);
 
     /**
      * Constructs the {@code SpeechletResponse} using the provided timestamp to get the appropriate tune for the user's time.
-     * @param timestamp the timestamp from the request
+     * @param timestamp the timestamp from the request in milliseconds
+     * @param zone the device's time zone. Its rules give the local time at {@code timestamp}, including DST.
      * @param playFromBeginning force the song to play from the beginning
      * @return the constructed {@code SpeechletResponse}
      */
-    public static SpeechletResponse getTune(Date timestamp, boolean playFromBeginning) {
+    public static SpeechletResponse getTune(long timestamp, ZoneId zone, boolean playFromBeginning) {
+        return toSpeechletResponse(getTrack(timestamp, zone, true, Region.DEFAULT, TrackCatalog.getDefaultRendition(),
+                playFromBeginning));
+    }
 
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTimeInMillis(timestamp.getTime());
+    /**
+     * Picks the tune for the user's time, like {@link #getTune}, without building the response.
+     * @param timestamp the timestamp from the request in milliseconds
+     * @param zone the time zone to play in
+     * @param zoneResolved whether {@code zone} is the device's own zone rather than a fallback, recorded in the token
+     * @param region the region the track is streamed to
+     * @param rendition the rendition to stream
+     * @param playFromBeginning force the song to play from the beginning
+     * @return the track to play, replacing whatever is playing
+     */
+    public static TrackPlay getTrack(long timestamp, ZoneId zone, boolean zoneResolved, Region region,
+                                     Rendition rendition, boolean playFromBeginning) {
+        long localTime = getLocalTime(timestamp, zone);
+        long hourMillis = Math.floorMod(localTime, HOUR_MS);
 
-        int dayHour = calendar.get(Calendar.HOUR_OF_DAY);
-        int dayMinutes = calendar.get(Calendar.MINUTE);
-        int daySeconds = calendar.get(Calendar.SECOND);
+        log.info("Request time: {} ms into the hour ({} ms)", hourMillis, localTime);
 
-        log.info("Request time (hh:mm:ss): {}:{}:{} ({} ms)", dayHour, dayMinutes, daySeconds, timestamp.getTime());
+        int track = getHourTrack(localTime);
+        long audioOffset = 0;
+        if(!playFromBeginning){
+            audioOffset = getOffset(hourMillis, TrackCatalog.getDurationMillis(track));
+        }
 
-        // Create the audio item
-        AudioItem audioItem = new AudioItem();
+        return getTrackPlay(track, region, rendition, timestamp, zone, zoneResolved, audioOffset,
+                PlayBehavior.REPLACE_ALL, null);
+    }
 
-        PlayDirective playDirective = new PlayDirective();
+    /**
+     * Picks up a stopped track where it stopped, if it is still the track for the current hour.
+     * @param token the stream token of the stopped track
+     * @param offsetInMilliseconds the playback position in the track when it stopped
+     * @param stoppedAt the time in milliseconds the track stopped
+     * @param timestamp the timestamp from the request in milliseconds
+     * @param region the region the track is streamed to
+     * @param rendition the rendition to stream
+     * @return the track to play from the stopped position, or null if the token does not decode,
+     * the hour has changed since the track stopped or the track has no audio left
+     */
+    public static TrackPlay getResumedTrack(String token, long offsetInMilliseconds, long stoppedAt, long timestamp,
+                                            Region region, Rendition rendition) {
+        PlaybackToken playbackToken = PlaybackToken.decode(token);
+        if(playbackToken == null || timestamp < stoppedAt){
+            return null;
+        }
 
-        String commonFileName = "+(Extended)+-+Animal+Crossing+-+New+Leaf+Music";
-        String fileName = dayHour + commonFileName;
+        long localTime = getLocalTime(timestamp, playbackToken.zone);
+        if(Math.floorDiv(getLocalTime(stoppedAt, playbackToken.zone), HOUR_MS) != Math.floorDiv(localTime, HOUR_MS)){
+            return null;
+        }
+        int track = getHourTrack(localTime);
+        String tokenPrefix = TrackCatalog.getTokenPrefix(track);
+        if(track != playbackToken.getTrack() || !token.startsWith(tokenPrefix)
+                || offsetInMilliseconds < 0 || offsetInMilliseconds >= TrackCatalog.getDurationMillis(track)){
+            return null;
+        }
 
-        Stream audioStream = new Stream();
-        audioStream.setUrl("https://s3.amazonaws.com/actunes/" + fileName + ".m4a");
+        log.info("Resuming {} at {} ms", TrackCatalog.getTitle(track), offsetInMilliseconds);
+        return new TrackPlay(track, region, rendition, offsetInMilliseconds, PlayBehavior.REPLACE_ALL,
+                token.substring(tokenPrefix.length()), null);
+    }
 
-        long audioOffset = 0;
-        if(!playFromBeginning){
-            audioOffset = getOffset(dayMinutes, daySeconds);
+    /**
+     * Constructs an ENQUEUE {@code SpeechletResponse} for the tune that should start when the current track ends,
+     * so the device moves on to it without a gap.
+     * A track end that falls just short of the hour is treated as the hour, so the next hour's tune starts from its beginning.
+     * @param trackEndTime the time in milliseconds the current track will end
+     * @param zone the device's time zone
+     * @param previousToken the token of the track that is currently playing
+     * @return the constructed {@code SpeechletResponse}
+     */
+    public static SpeechletResponse getNextTune(long trackEndTime, ZoneId zone, String previousToken) {
+        return toSpeechletResponse(getNextTrack(trackEndTime, zone, true, Region.DEFAULT,
+                TrackCatalog.getDefaultRendition(), previousToken));
+    }
+
+    /**
+     * Picks the tune that follows the current track, like {@link #getNextTune}, without building the response.
+     * @param trackEndTime the time in milliseconds the current track will end
+     * @param zone the time zone to play in
+     * @param zoneResolved whether {@code zone} is the device's own zone rather than a fallback, recorded in the token
+     * @param region the region the track is streamed to
+     * @param rendition the rendition to stream
+     * @param previousToken the token of the track that is currently playing
+     * @return the track to enqueue
+     */
+    public static TrackPlay getNextTrack(long trackEndTime, ZoneId zone, boolean zoneResolved, Region region,
+                                         Rendition rendition, String previousToken) {
+        long localTime = getLocalTime(trackEndTime, zone);
+        long hourMillis = Math.floorMod(localTime, HOUR_MS);
+        if(HOUR_MS - hourMillis <= HOUR_BOUNDARY_TOLERANCE_MS){
+            localTime += HOUR_MS - hourMillis;
+            hourMillis = 0;
         }
-        audioStream.setOffsetInMilliseconds(audioOffset);
 
-        log.info("Will play next: {}.m4a", fileName);
+        log.info("Current track ends {} ms into the hour ({} ms)", hourMillis, localTime);
 
-        if(token != null){
-            playDirective.setPlayBehavior(PlayBehavior.REPLACE_ALL);
-        }else{
-            playDirective.setPlayBehavior(PlayBehavior.REPLACE_ALL);
-        }
+        int track = getHourTrack(localTime);
+        long audioOffset = getOffset(hourMillis, TrackCatalog.getDurationMillis(track));
+        return getTrackPlay(track, region, rendition, trackEndTime, zone, zoneResolved, audioOffset,
+                PlayBehavior.ENQUEUE, previousToken);
+    }
 
-        fileName = getReadableTime(dayHour) + commonFileName;
-        try {
-            token = URLDecoder.decode(fileName, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+    /**
+     * @param timestamp the time in milliseconds of the playback position
+     * @param trackOffset the playback position in the current track in milliseconds
+     * @param trackToken the stream token of the current track, which identifies it and so its duration
+     * @return the time in milliseconds the current track will end
+     */
+    public static long getTrackEndTime(long timestamp, long trackOffset, String trackToken) {
+        return timestamp + Math.max(0, getDurationMillis(trackToken) - trackOffset);
+    }
+
+    /**
+     * @param trackToken a stream token
+     * @return the duration of the token's track, or of a typical track if the token's track is not in the catalog
+     */
+    static long getDurationMillis(String trackToken) {
+        PlaybackToken playbackToken = PlaybackToken.decode(trackToken);
+        int track = playbackToken != null ? playbackToken.getTrack() : -1;
+        if(track < 0 && trackToken != null){
+            int separator = trackToken.indexOf('|');
+            track = TrackCatalog.findByTitle(separator >= 0 ? trackToken.substring(0, separator) : trackToken);
         }
-        audioStream.setToken(token + "|" + UUID.randomUUID().toString());
+        return track >= 0 ? TrackCatalog.getDurationMillis(track) : UNKNOWN_TRACK_LENGTH_MS;
+    }
+
+    /**
+     * @param localTime the wall clock time, as milliseconds since the local epoch
+     * @return the catalog track for the local hour
+     */
+    private static int getHourTrack(long localTime) {
+        int dayHour = (int) (Math.floorMod(localTime, DAY_MS) / HOUR_MS);
+        return TrackCatalog.find(TrackCatalog.getDefaultGame(), dayHour, Weather.CLEAR);
+    }
+
+    private static TrackPlay getTrackPlay(int track, Region region, Rendition rendition, long startTime, ZoneId zone,
+                                          boolean zoneResolved, long audioOffset, PlayBehavior playBehavior,
+                                          String expectedPreviousToken) {
+        log.info("Will play next: {} ({})", TrackCatalog.getUrl(track, region, rendition), playBehavior);
+
+        String tokenSuffix = PlaybackToken.encodeSuffix(TrackCatalog.getTokenPrefix(track), TrackCatalog.getSlot(track),
+                zone, zoneResolved, startTime);
+        return new TrackPlay(track, region, rendition, audioOffset, playBehavior, tokenSuffix, expectedPreviousToken);
+    }
+
+    /**
+     * Builds the play directive response for a track.
+     * @param track the track to play
+     * @return the constructed {@code SpeechletResponse}
+     */
+    public static SpeechletResponse toSpeechletResponse(TrackPlay track) {
+        Stream audioStream = new Stream();
+        audioStream.setUrl(TrackCatalog.getUrl(track.track, track.region, track.rendition));
+        audioStream.setOffsetInMilliseconds(track.offsetInMilliseconds);
+        audioStream.setExpectedPreviousToken(track.expectedPreviousToken);
+        audioStream.setToken(getToken(track));
 
+        // Create the audio item
+        AudioItem audioItem = new AudioItem();
         audioItem.setStream(audioStream);
 
+        PlayDirective playDirective = new PlayDirective();
+        playDirective.setPlayBehavior(track.playBehavior);
         playDirective.setAudioItem(audioItem);
 
         // Make the PlayDirective using the audio item
@@ -91,30 +219,37 @@ public class TunesUtil {
         return speechletResponse;
     }
 
-    private static String getReadableTime(int dayHour) {
-        String readableTime = String.valueOf(dayHour) + ":00";
-        try {
-            SimpleDateFormat _24HourSDF = new SimpleDateFormat("HH:mm");
-            SimpleDateFormat _12HourSDF = new SimpleDateFormat("hh:mm a");
-            Date _24HourDt = _24HourSDF.parse(readableTime);
-            readableTime = _12HourSDF.format(_24HourDt);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return readableTime;
+    /**
+     * @param track a track
+     * @return the stream token the track is played with
+     */
+    public static String getToken(TrackPlay track) {
+        return TrackCatalog.getTokenPrefix(track.track) + track.tokenSuffix;
     }
 
-    private static long getOffset(int dayMinutes, int daySeconds){
-        long calculatedOffset = 0;
-
-        long msDayMinutes = TimeUnit.MINUTES.toMillis(dayMinutes);
-        long msDaySeconds = TimeUnit.SECONDS.toMillis(daySeconds);
+    /**
+     * @param timestamp the time in milliseconds
+     * @param zone the time zone
+     * @return the wall clock time of the zone at {@code timestamp}, as milliseconds since the local epoch
+     */
+    public static long getLocalTime(long timestamp, ZoneId zone) {
+        int offsetSeconds = zone.getRules().getOffset(Instant.ofEpochMilli(timestamp)).getTotalSeconds();
+        return timestamp + TimeUnit.SECONDS.toMillis(offsetSeconds);
+    }
 
-        long minutesMilliseconds = msDayMinutes + msDaySeconds;
+    /**
+     * A track that would run past the end of the hour is started part way through so that it ends exactly on the hour.
+     * Otherwise it starts from the beginning. The offset is always within the track.
+     * @param hourMillis milliseconds since the start of the local hour
+     * @param durationMillis the length of the track in milliseconds
+     * @return the offset into the track in milliseconds
+     */
+    static long getOffset(long hourMillis, long durationMillis){
+        long calculatedOffset = 0;
 
-        if(msDayMinutes > TimeUnit.MINUTES.toMillis(30)){
-            calculatedOffset = TimeUnit.MINUTES.toMillis(30)
-                    - (TimeUnit.MINUTES.toMillis(60) - minutesMilliseconds);
+        long remainingMillis = HOUR_MS - hourMillis;
+        if(remainingMillis < durationMillis){
+            calculatedOffset = durationMillis - remainingMillis;
 
             log.info("Offset: {} minutes ({}ms)",  TimeUnit.MILLISECONDS.toMinutes(calculatedOffset), calculatedOffset);
         }
@@ -135,4 +270,23 @@ public class TunesUtil {
 
         return card;
     }
+
+    /**
+     * Reads a numeric setting from the environment.
+     * @param name the environment variable name
+     * @param defaultValue the value to use when the variable is missing or not a number
+     * @return the configured value
+     */
+    public static long getEnvLong(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if(value == null || value.isEmpty()){
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value for {}: {}. Using default {}", name, value, defaultValue);
+            return defaultValue;
+        }
+    }
 }
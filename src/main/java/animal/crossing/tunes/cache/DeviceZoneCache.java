@@ -0,0 +1,70 @@
+package animal.crossing.tunes.cache;
+
+import animal.crossing.tunes.TunesUtil;
+
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the resolved time zone of each Alexa device, keyed by device ID.
+ * Local times are computed from the zone's rules for every request, so entries stay valid across DST transitions
+ * and only expire after the configured TTL, which bounds how long a device that moved keeps its old zone.
+ */
+public class DeviceZoneCache {
+
+    private final ExpiringCache<String, ZoneId> cache;
+    private final long ttlMillis;
+
+    public DeviceZoneCache(int maxSize, long ttlMillis){
+        this.cache = new ExpiringCache<>(maxSize);
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Creates the cache using the DEVICE_CACHE_MAX_SIZE and DEVICE_CACHE_TTL_MINUTES environment variables.
+     * @return the configured cache
+     */
+    public static DeviceZoneCache fromEnvironment(){
+        int maxSize = (int) TunesUtil.getEnvLong("DEVICE_CACHE_MAX_SIZE", 10000);
+        long ttlMinutes = TunesUtil.getEnvLong("DEVICE_CACHE_TTL_MINUTES", TimeUnit.DAYS.toMinutes(7));
+        return new DeviceZoneCache(maxSize, TimeUnit.MINUTES.toMillis(ttlMinutes));
+    }
+
+    public ZoneId get(String deviceId){
+        return cache.get(deviceId);
+    }
+
+    /**
+     * @param deviceId the device ID
+     * @return the last zone resolved for the device even if its entry has expired, or null
+     */
+    public ZoneId getStale(String deviceId){
+        return cache.getStale(deviceId);
+    }
+
+    /**
+     * Caches the device's zone for the configured TTL.
+     * @param deviceId the device ID
+     * @param zone the device's time zone
+     */
+    public void put(String deviceId, ZoneId zone){
+        cache.put(deviceId, zone, System.currentTimeMillis() + ttlMillis);
+    }
+
+    public void invalidate(String deviceId){
+        cache.invalidate(deviceId);
+    }
+
+    public long getHitCount(){
+        return cache.getHitCount();
+    }
+
+    public long getMissCount(){
+        return cache.getMissCount();
+    }
+
+    @Override
+    public String toString() {
+        return cache.toString();
+    }
+}
@@ -0,0 +1,146 @@
+package animal.crossing.tunes.cache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded, thread-safe cache where every entry carries its own expiry time.
+ * Least recently used entries are evicted once the cache is full.
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class ExpiringCache<K, V> {
+
+    private final int maxSize;
+    private final Map<K, Entry<V>> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ExpiringCache(int maxSize){
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                boolean evict = size() > ExpiringCache.this.maxSize;
+                if(evict){
+                    evictions.incrementAndGet();
+                }
+                return evict;
+            }
+        };
+    }
+
+    /**
+     * Gets the value for the key if it is present and has not expired yet.
+     * @param key the key to look up
+     * @return the cached value, or null on a miss
+     */
+    public V get(K key){
+        long now = System.currentTimeMillis();
+        Entry<V> entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+
+        if(entry == null || entry.expiresAt <= now){
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Gets the value for the key even if it has expired.
+     * Expired entries stay in the cache until they are replaced or evicted, so they can serve as a fallback.
+     * Stale reads are not counted as hits or misses.
+     * @param key the key to look up
+     * @return the cached value, or null if the key was never cached or has been evicted
+     */
+    public V getStale(K key){
+        Entry<V> entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        return entry != null ? entry.value : null;
+    }
+
+    /**
+     * Stores the value until the given expiry time.
+     * @param key the key
+     * @param value the value to cache
+     * @param expiresAt epoch milliseconds after which the entry is no longer returned
+     */
+    public void put(K key, V value, long expiresAt){
+        synchronized (entries) {
+            entries.put(key, new Entry<>(value, expiresAt));
+        }
+    }
+
+    public void invalidate(K key){
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Visits every entry that has not expired yet, least recently used first.
+     * The entries are copied first, so the visitor runs without holding the cache's lock.
+     * @param visitor called with each key, value and expiry time
+     */
+    public void forEach(EntryVisitor<K, V> visitor){
+        long now = System.currentTimeMillis();
+        List<Map.Entry<K, Entry<V>>> copy;
+        synchronized (entries) {
+            copy = new ArrayList<>(entries.entrySet());
+        }
+        for(Map.Entry<K, Entry<V>> entry : copy){
+            if(entry.getValue().expiresAt > now){
+                visitor.visit(entry.getKey(), entry.getValue().value, entry.getValue().expiresAt);
+            }
+        }
+    }
+
+    public int size(){
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount(){
+        return hits.get();
+    }
+
+    public long getMissCount(){
+        return misses.get();
+    }
+
+    public long getEvictionCount(){
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount();
+    }
+
+    public interface EntryVisitor<K, V> {
+        void visit(K key, V value, long expiresAt);
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(V value, long expiresAt){
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
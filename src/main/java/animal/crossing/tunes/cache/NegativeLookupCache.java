@@ -0,0 +1,87 @@
+package animal.crossing.tunes.cache;
+
+import animal.crossing.tunes.TunesUtil;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers devices whose time zone lookups failed for a reason that retrying will not fix soon,
+ * so their requests go straight to the fallback zone instead of calling the Alexa and Google APIs again.
+ * The time zone setting and the address are remembered separately: a device without a time zone setting still
+ * has its address looked up, and a device whose address is denied or unknown still has its setting read,
+ * as the setting needs no address permission.
+ * A denied address permission and a missing setting are kept for a shorter time than an address that could not
+ * be located, because the user can grant the permission or set the time zone at any time.
+ */
+public class NegativeLookupCache {
+
+    public static final String PERMISSION_DENIED = "permission denied";
+    public static final String ADDRESS_NOT_FOUND = "address not found";
+
+    private final ExpiringCache<String, String> addressFailures;
+    private final ExpiringCache<String, Boolean> missingSettings;
+    private final long permissionDeniedTtlMillis;
+    private final long addressNotFoundTtlMillis;
+    private final long noTimeZoneSettingTtlMillis;
+
+    public NegativeLookupCache(int maxSize, long permissionDeniedTtlMillis, long addressNotFoundTtlMillis,
+                               long noTimeZoneSettingTtlMillis){
+        this.addressFailures = new ExpiringCache<>(maxSize);
+        this.missingSettings = new ExpiringCache<>(maxSize);
+        this.permissionDeniedTtlMillis = permissionDeniedTtlMillis;
+        this.addressNotFoundTtlMillis = addressNotFoundTtlMillis;
+        this.noTimeZoneSettingTtlMillis = noTimeZoneSettingTtlMillis;
+    }
+
+    /**
+     * Creates the cache using the NEGATIVE_CACHE_MAX_SIZE, PERMISSION_DENIED_TTL_MINUTES,
+     * ADDRESS_NOT_FOUND_TTL_MINUTES and NO_TIME_ZONE_SETTING_TTL_MINUTES environment variables.
+     * @return the configured cache
+     */
+    public static NegativeLookupCache fromEnvironment(){
+        int maxSize = (int) TunesUtil.getEnvLong("NEGATIVE_CACHE_MAX_SIZE", 10000);
+        long permissionDeniedMinutes = TunesUtil.getEnvLong("PERMISSION_DENIED_TTL_MINUTES", 30);
+        long addressNotFoundMinutes = TunesUtil.getEnvLong("ADDRESS_NOT_FOUND_TTL_MINUTES", TimeUnit.DAYS.toMinutes(1));
+        long noTimeZoneSettingMinutes = TunesUtil.getEnvLong("NO_TIME_ZONE_SETTING_TTL_MINUTES", 30);
+        return new NegativeLookupCache(maxSize, TimeUnit.MINUTES.toMillis(permissionDeniedMinutes),
+                TimeUnit.MINUTES.toMillis(addressNotFoundMinutes), TimeUnit.MINUTES.toMillis(noTimeZoneSettingMinutes));
+    }
+
+    /**
+     * @param deviceId the device ID
+     * @return why the device's last address lookup failed, or null if its address should be looked up
+     */
+    public String getAddressFailure(String deviceId){
+        return addressFailures.get(deviceId);
+    }
+
+    /**
+     * @param deviceId the device ID
+     * @return whether the settings API recently answered that the device has no time zone set
+     */
+    public boolean hasNoTimeZoneSetting(String deviceId){
+        return missingSettings.get(deviceId) != null;
+    }
+
+    public void putPermissionDenied(String deviceId){
+        addressFailures.put(deviceId, PERMISSION_DENIED, System.currentTimeMillis() + permissionDeniedTtlMillis);
+    }
+
+    public void putAddressNotFound(String deviceId){
+        addressFailures.put(deviceId, ADDRESS_NOT_FOUND, System.currentTimeMillis() + addressNotFoundTtlMillis);
+    }
+
+    public void putNoTimeZoneSetting(String deviceId){
+        missingSettings.put(deviceId, Boolean.TRUE, System.currentTimeMillis() + noTimeZoneSettingTtlMillis);
+    }
+
+    public void invalidate(String deviceId){
+        addressFailures.invalidate(deviceId);
+        missingSettings.invalidate(deviceId);
+    }
+
+    @Override
+    public String toString() {
+        return "address: " + addressFailures + ", setting: " + missingSettings;
+    }
+}
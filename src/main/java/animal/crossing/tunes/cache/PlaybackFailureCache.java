@@ -0,0 +1,52 @@
+package animal.crossing.tunes.cache;
+
+import animal.crossing.tunes.TunesUtil;
+import animal.crossing.tunes.catalog.Rendition;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the rendition each device stepped down to after its playback failed,
+ * so its following tracks start in that rendition instead of failing again.
+ * A device goes back to the default rendition once its last failure is old enough.
+ */
+public class PlaybackFailureCache {
+
+    private final ExpiringCache<String, Rendition> cache;
+    private final long ttlMillis;
+
+    public PlaybackFailureCache(int maxSize, long ttlMillis){
+        this.cache = new ExpiringCache<>(maxSize);
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Creates the cache using the PLAYBACK_FAILURE_CACHE_MAX_SIZE and PLAYBACK_FAILURE_TTL_MINUTES environment variables.
+     * @return the configured cache
+     */
+    public static PlaybackFailureCache fromEnvironment(){
+        int maxSize = (int) TunesUtil.getEnvLong("PLAYBACK_FAILURE_CACHE_MAX_SIZE", 10000);
+        long ttlMinutes = TunesUtil.getEnvLong("PLAYBACK_FAILURE_TTL_MINUTES", 60);
+        return new PlaybackFailureCache(maxSize, TimeUnit.MINUTES.toMillis(ttlMinutes));
+    }
+
+    /**
+     * @param deviceId the device ID
+     * @return the rendition the device stepped down to, or null if it has no recent failures
+     */
+    public Rendition get(String deviceId){
+        return cache.get(deviceId);
+    }
+
+    /**
+     * Records that the device's playback failed and it should stream the given rendition from now on.
+     */
+    public void putFailure(String deviceId, Rendition rendition){
+        cache.put(deviceId, rendition, System.currentTimeMillis() + ttlMillis);
+    }
+
+    @Override
+    public String toString() {
+        return cache.toString();
+    }
+}
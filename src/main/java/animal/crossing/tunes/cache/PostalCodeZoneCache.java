@@ -0,0 +1,277 @@
+package animal.crossing.tunes.cache;
+
+import animal.crossing.tunes.TunesUtil;
+import animal.crossing.tunes.data.PostalCodeLocation;
+import animal.crossing.tunes.metrics.RequestMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.DateTimeException;
+import java.time.ZoneId;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the location of each postal code looked up with Google, keyed by normalized country and postal code,
+ * so devices that share a postal code share one geocode and timezone lookup.
+ * Concurrent misses for the same postal code wait on the lookup already running instead of starting their own.
+ * <p>
+ * The cache is saved to a snapshot file at most once per interval after new entries are added, either after the lookup
+ * or when the player flushes its pending writes at the end of an invocation. Lambda gives every container its own /tmp
+ * and does not reliably run shutdown hooks, so the snapshot only warms new containers when it is on shared storage
+ * such as an EFS mount. A new process loads the snapshot on startup so it does not start cold.
+ */
+public class PostalCodeZoneCache {
+    private static final Logger log = LoggerFactory.getLogger(PostalCodeZoneCache.class);
+
+    public interface Loader {
+        PostalCodeLocation load() throws IOException;
+    }
+
+    private final ExpiringCache<String, PostalCodeLocation> cache;
+    private final ConcurrentMap<String, CompletableFuture<PostalCodeLocation>> inFlight = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+    private final File snapshotFile;
+    private final long snapshotIntervalMillis;
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final AtomicLong lastSnapshot = new AtomicLong();
+
+    /**
+     * @param maxSize the maximum number of postal codes to keep
+     * @param ttlMillis how long a postal code's location is kept
+     * @param snapshotFile the file to load and save snapshots, or null to keep the cache in memory only
+     * @param snapshotIntervalMillis the minimum time between two snapshots
+     */
+    public PostalCodeZoneCache(int maxSize, long ttlMillis, File snapshotFile, long snapshotIntervalMillis){
+        this.cache = new ExpiringCache<>(maxSize);
+        this.ttlMillis = ttlMillis;
+        this.snapshotFile = snapshotFile;
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+    }
+
+    /**
+     * Creates the cache using the POSTAL_CACHE_MAX_SIZE, POSTAL_CACHE_TTL_MINUTES and POSTAL_CACHE_SNAPSHOT_SECONDS
+     * environment variables and loads its snapshot.
+     * The snapshot file is set with the POSTAL_CACHE_SNAPSHOT_FILE environment variable or system property,
+     * normally a path on an EFS mount shared by every container. Without it the cache is kept in memory only.
+     * @return the configured cache
+     */
+    public static PostalCodeZoneCache fromEnvironment(){
+        int maxSize = (int) TunesUtil.getEnvLong("POSTAL_CACHE_MAX_SIZE", 50000);
+        long ttlMinutes = TunesUtil.getEnvLong("POSTAL_CACHE_TTL_MINUTES", TimeUnit.DAYS.toMinutes(30));
+        long snapshotSeconds = TunesUtil.getEnvLong("POSTAL_CACHE_SNAPSHOT_SECONDS", 60);
+
+        String snapshotPath = System.getProperty("POSTAL_CACHE_SNAPSHOT_FILE", System.getenv("POSTAL_CACHE_SNAPSHOT_FILE"));
+        File snapshotFile = snapshotPath == null || snapshotPath.isEmpty() ? null : new File(snapshotPath);
+
+        PostalCodeZoneCache cache = new PostalCodeZoneCache(maxSize, TimeUnit.MINUTES.toMillis(ttlMinutes),
+                snapshotFile, TimeUnit.SECONDS.toMillis(snapshotSeconds));
+        if(snapshotFile != null){
+            cache.loadSnapshot();
+        }
+        return cache;
+    }
+
+    /**
+     * Normalizes an address into a cache key: the country code and postal code upper cased,
+     * with spaces and dashes removed from the postal code.
+     * @param countryCode the ISO 3166 two letter country code, may be null
+     * @param postalCode the postal code, may be null
+     * @return the cache key
+     */
+    public static String key(String countryCode, String postalCode){
+        StringBuilder key = new StringBuilder();
+        if(countryCode != null){
+            key.append(countryCode.trim().toUpperCase(Locale.ROOT));
+        }
+        key.append(',');
+        if(postalCode != null){
+            for(int i = 0; i < postalCode.length(); i++){
+                char c = postalCode.charAt(i);
+                if(c != ' ' && c != '-'){
+                    key.append(Character.toUpperCase(c));
+                }
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Gets the postal code's location from the cache, or loads it.
+     * If a lookup for the same postal code is already running, waits for its result instead of loading it again.
+     * Only successful lookups are cached. A failed lookup fails every caller that waited on it.
+     * @param key the key from {@link #key}
+     * @param loader looks up the location on a miss
+     * @return the postal code's location
+     * @throws IOException if the lookup failed
+     */
+    public PostalCodeLocation getOrLoad(String key, Loader loader) throws IOException {
+        PostalCodeLocation location = cache.get(key);
+        if(location != null){
+            log.info("Postal code {} found in the cache.", key);
+            RequestMetrics.current().increment(RequestMetrics.Counter.POSTAL_CODE_CACHE_HIT);
+            return location;
+        }
+
+        CompletableFuture<PostalCodeLocation> started = new CompletableFuture<>();
+        CompletableFuture<PostalCodeLocation> running = inFlight.putIfAbsent(key, started);
+        if(running != null){
+            log.info("Waiting for the lookup of postal code {} already running.", key);
+            RequestMetrics.current().increment(RequestMetrics.Counter.POSTAL_CODE_LOOKUP_JOINED);
+            return await(running);
+        }
+
+        try {
+            // A lookup that finished between the cache check and putIfAbsent has already removed its in-flight entry
+            location = cache.get(key);
+            if(location == null){
+                location = loader.load();
+                cache.put(key, location, System.currentTimeMillis() + ttlMillis);
+                dirty.set(true);
+            }
+            started.complete(location);
+        } catch (IOException | RuntimeException e) {
+            started.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, started);
+        }
+
+        saveSnapshotIfDue();
+        return location;
+    }
+
+    /**
+     * Saves the cache to the snapshot file if it has new entries.
+     * The snapshot is written to a temporary file first and then moved over the old one,
+     * so a process loading it never sees a partial file.
+     */
+    public synchronized void saveSnapshot(){
+        if(snapshotFile == null || !dirty.getAndSet(false)){
+            return;
+        }
+        lastSnapshot.set(System.currentTimeMillis());
+
+        Path target = snapshotFile.toPath();
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(target.toAbsolutePath().getParent(), snapshotFile.getName(), ".tmp");
+            int[] count = new int[1];
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                IOException[] error = new IOException[1];
+                cache.forEach((key, location, expiresAt) -> {
+                    if(error[0] != null){
+                        return;
+                    }
+                    try {
+                        writer.write(key + "\t" + location.timeZoneId + "\t" + location.lat + "\t" + location.lng
+                                + "\t" + expiresAt + "\n");
+                        count[0]++;
+                    } catch (IOException e) {
+                        error[0] = e;
+                    }
+                });
+                if(error[0] != null){
+                    throw error[0];
+                }
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            log.info("Saved {} postal codes to {}", count[0], snapshotFile);
+        } catch (IOException e) {
+            log.warn("Unable to save the postal code snapshot to {}", snapshotFile, e);
+            dirty.set(true);
+            if(temp != null){
+                temp.toFile().delete();
+            }
+        }
+    }
+
+    /**
+     * Adds the unexpired entries of the snapshot file to the cache.
+     * Lines that cannot be read are skipped.
+     */
+    public void loadSnapshot(){
+        if(snapshotFile == null || !snapshotFile.isFile()){
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int loaded = 0;
+        try (BufferedReader reader = Files.newBufferedReader(snapshotFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t", -1);
+                if(columns.length != 5){
+                    continue;
+                }
+                try {
+                    long expiresAt = Long.parseLong(columns[4]);
+                    if(expiresAt <= now){
+                        continue;
+                    }
+                    ZoneId.of(columns[1]);
+                    PostalCodeLocation location = new PostalCodeLocation(columns[1],
+                            Double.parseDouble(columns[2]), Double.parseDouble(columns[3]));
+                    cache.put(columns[0], location, Math.min(expiresAt, now + ttlMillis));
+                    loaded++;
+                } catch (NumberFormatException | DateTimeException e) {
+                    log.info("Skipping invalid postal code snapshot line: {}", line);
+                }
+            }
+            log.info("Loaded {} postal codes from {}", loaded, snapshotFile);
+        } catch (IOException e) {
+            log.warn("Unable to load the postal code snapshot from {}", snapshotFile, e);
+        }
+    }
+
+    /**
+     * Saves the cache to the snapshot file if it has new entries and the snapshot interval has passed.
+     */
+    public void saveSnapshotIfDue(){
+        if(snapshotFile != null && System.currentTimeMillis() - lastSnapshot.get() >= snapshotIntervalMillis){
+            saveSnapshot();
+        }
+    }
+
+    private static PostalCodeLocation await(CompletableFuture<PostalCodeLocation> lookup) throws IOException {
+        try {
+            return lookup.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException){
+                throw (IOException) cause;
+            }
+            if(cause instanceof RuntimeException){
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    public int size(){
+        return cache.size();
+    }
+
+    @Override
+    public String toString() {
+        return cache.toString() + ", inFlight=" + inFlight.size();
+    }
+}
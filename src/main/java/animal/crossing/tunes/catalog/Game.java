@@ -0,0 +1,34 @@
+package animal.crossing.tunes.catalog;
+
+/**
+ * The games the catalog has hourly music from, with the IDs the manifest uses for them.
+ */
+public enum Game {
+    WILD_WORLD("wild-world"),
+    CITY_FOLK("city-folk"),
+    NEW_LEAF("new-leaf"),
+    NEW_HORIZONS("new-horizons");
+
+    private final String id;
+
+    Game(String id){
+        this.id = id;
+    }
+
+    public String getId(){
+        return id;
+    }
+
+    /**
+     * @param id a manifest game ID
+     * @return the game, or null if the ID is unknown
+     */
+    public static Game fromId(String id){
+        for(Game game : values()){
+            if(game.id.equals(id)){
+                return game;
+            }
+        }
+        return null;
+    }
+}
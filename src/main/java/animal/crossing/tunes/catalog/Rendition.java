@@ -0,0 +1,33 @@
+package animal.crossing.tunes.catalog;
+
+/**
+ * The encodings a track can be streamed in, from the highest bitrate to the lowest,
+ * with the IDs the manifest uses for them.
+ */
+public enum Rendition {
+    HIGH("high"),
+    LOW("low");
+
+    private final String id;
+
+    Rendition(String id){
+        this.id = id;
+    }
+
+    public String getId(){
+        return id;
+    }
+
+    /**
+     * @param id a manifest rendition ID
+     * @return the rendition, or null if the ID is unknown
+     */
+    public static Rendition fromId(String id){
+        for(Rendition rendition : values()){
+            if(rendition.id.equals(id)){
+                return rendition;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,305 @@
+package animal.crossing.tunes.catalog;
+
+import animal.crossing.tunes.region.Region;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The tracks the skill can play, loaded once from the bundled track-catalog.csv manifest,
+ * or from the classpath resource named by the CATALOG_MANIFEST environment variable or system property.
+ * <p>
+ * Tracks are numbered in manifest order and their URLs, title, token prefix and duration are kept in arrays
+ * indexed by that number. A track can be listed in several renditions, and a rendition the manifest does not list
+ * streams the nearest one it does, preferring a lower bitrate. Every combination of game, hour and weather is a slot, and a table maps each slot
+ * to the track that plays for it, with fallbacks applied at load time: a missing weather variant plays the game's
+ * clear track, and a missing game plays the default game's track. Lookups are then a single array read.
+ * The default game is set with the CATALOG_GAME environment variable and must have a clear track for every hour.
+ * The rendition played for devices without recent playback failures is set with CATALOG_RENDITION.
+ * Stream URLs are also resolved up front for every {@link Region}'s audio origin.
+ */
+public final class TrackCatalog {
+    private static final Logger log = LoggerFactory.getLogger(TrackCatalog.class);
+
+    private static final String DEFAULT_MANIFEST_RESOURCE = "/track-catalog.csv";
+    private static final String MANIFEST_RESOURCE = getManifestResource();
+    public static final int HOURS = 24;
+    private static final int WEATHERS = Weather.values().length;
+    private static final int SLOTS = Game.values().length * HOURS * WEATHERS;
+    private static final int RENDITIONS = Rendition.values().length;
+
+    private static final Game defaultGame;
+    private static final Rendition defaultRendition;
+    private static final String[][] urls;
+    private static final boolean[][] listedRenditions;
+    private static final String[][][] regionUrls = new String[Region.values().length][RENDITIONS][];
+    private static final String[] titles;
+    private static final String[] tokenPrefixes;
+    private static final long[] durations;
+    private static final int[] trackSlots;
+    private static final int[] slotTracks = new int[SLOTS];
+    private static final Map<String, Integer> tracksByTitle = new HashMap<>();
+
+    static {
+        String gameId = System.getenv("CATALOG_GAME");
+        Game configuredGame = gameId == null || gameId.isEmpty() ? Game.NEW_LEAF : Game.fromId(gameId);
+        if(configuredGame == null){
+            log.warn("Unknown CATALOG_GAME {}. Using {} instead.", gameId, Game.NEW_LEAF.getId());
+            configuredGame = Game.NEW_LEAF;
+        }
+        defaultGame = configuredGame;
+
+        String renditionId = System.getenv("CATALOG_RENDITION");
+        Rendition configuredRendition = renditionId == null || renditionId.isEmpty() ? Rendition.HIGH
+                : Rendition.fromId(renditionId);
+        if(configuredRendition == null){
+            log.warn("Unknown CATALOG_RENDITION {}. Using {} instead.", renditionId, Rendition.HIGH.getId());
+            configuredRendition = Rendition.HIGH;
+        }
+        defaultRendition = configuredRendition;
+
+        Arrays.fill(slotTracks, -1);
+        List<String[]> rows = new ArrayList<>();
+        try (InputStream in = TrackCatalog.class.getResourceAsStream(MANIFEST_RESOURCE);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    rows.add(line.split(",", 7));
+                }
+            }
+        } catch (IOException | NullPointerException e) {
+            throw new ExceptionInInitializerError("Unable to load " + MANIFEST_RESOURCE + ": " + e);
+        }
+
+        List<String> trackTitles = new ArrayList<>();
+        List<Long> trackDurations = new ArrayList<>();
+        List<Integer> trackSlotNumbers = new ArrayList<>();
+        List<String[]> trackUrls = new ArrayList<>();
+        for (String[] columns : rows) {
+            if (columns.length != 7) {
+                throw new ExceptionInInitializerError("Invalid row in " + MANIFEST_RESOURCE + ": " + String.join(",", columns));
+            }
+            Game game = Game.fromId(columns[0]);
+            int hour = Integer.parseInt(columns[1]);
+            Weather weather = Weather.fromId(columns[2]);
+            Rendition rendition = Rendition.fromId(columns[3]);
+            if (game == null || weather == null || rendition == null || hour < 0 || hour >= HOURS
+                    || columns[6].indexOf('|') >= 0) {
+                throw new ExceptionInInitializerError("Invalid row in " + MANIFEST_RESOURCE + ": " + String.join(",", columns));
+            }
+
+            int slot = slot(game, hour, weather);
+            int track = slotTracks[slot];
+            if (track < 0) {
+                track = trackTitles.size();
+                slotTracks[slot] = track;
+                trackSlotNumbers.add(slot);
+                trackTitles.add(columns[6]);
+                trackDurations.add(Long.parseLong(columns[4]));
+                trackUrls.add(new String[RENDITIONS]);
+            } else if (!trackTitles.get(track).equals(columns[6])) {
+                throw new ExceptionInInitializerError("Rendition with another title in " + MANIFEST_RESOURCE + ": "
+                        + String.join(",", columns));
+            }
+            if (trackUrls.get(track)[rendition.ordinal()] != null) {
+                throw new ExceptionInInitializerError("Duplicate track in " + MANIFEST_RESOURCE + ": " + String.join(",", columns));
+            }
+            trackUrls.get(track)[rendition.ordinal()] = columns[5];
+        }
+
+        int size = trackTitles.size();
+        titles = new String[size];
+        tokenPrefixes = new String[size];
+        durations = new long[size];
+        trackSlots = new int[size];
+        listedRenditions = new boolean[RENDITIONS][size];
+        urls = new String[RENDITIONS][size];
+        for (int track = 0; track < size; track++) {
+            titles[track] = trackTitles.get(track);
+            tokenPrefixes[track] = titles[track] + "|";
+            durations[track] = trackDurations.get(track);
+            trackSlots[track] = trackSlotNumbers.get(track);
+            tracksByTitle.put(titles[track], track);
+
+            String[] listed = trackUrls.get(track);
+            for (int rendition = 0; rendition < RENDITIONS; rendition++) {
+                listedRenditions[rendition][track] = listed[rendition] != null;
+                urls[rendition][track] = nearestUrl(listed, rendition);
+            }
+        }
+
+        for (Game game : Game.values()) {
+            for (int hour = 0; hour < HOURS; hour++) {
+                int clear = slot(game, hour, Weather.CLEAR);
+                int defaultClear = slot(defaultGame, hour, Weather.CLEAR);
+                if (slotTracks[defaultClear] < 0) {
+                    throw new ExceptionInInitializerError(MANIFEST_RESOURCE + " has no clear track for "
+                            + defaultGame.getId() + " at hour " + hour);
+                }
+                int gameClear = slotTracks[clear];
+                for (Weather weather : Weather.values()) {
+                    int slot = slot(game, hour, weather);
+                    if (slotTracks[slot] < 0) {
+                        int defaultWeather = slotTracks[slot(defaultGame, hour, weather)];
+                        slotTracks[slot] = gameClear >= 0 ? gameClear
+                                : defaultWeather >= 0 ? defaultWeather : slotTracks[defaultClear];
+                    }
+                }
+            }
+        }
+
+        for (Region region : Region.values()) {
+            for (int rendition = 0; rendition < RENDITIONS; rendition++) {
+                regionUrls[region.ordinal()][rendition] = new String[size];
+                for (int track = 0; track < size; track++) {
+                    regionUrls[region.ordinal()][rendition][track] = region.toAudioUrl(urls[rendition][track]);
+                }
+            }
+        }
+
+        log.info("Loaded track catalog: {} tracks, default game {}, default rendition {}", size, defaultGame.getId(),
+                defaultRendition.getId());
+    }
+
+    private TrackCatalog(){
+    }
+
+    private static String getManifestResource(){
+        String manifest = System.getProperty("CATALOG_MANIFEST", System.getenv("CATALOG_MANIFEST"));
+        return manifest == null || manifest.isEmpty() ? DEFAULT_MANIFEST_RESOURCE : manifest;
+    }
+
+    /**
+     * @return the listed URL of the rendition, or else of the closest rendition listed, trying lower bitrates first
+     */
+    private static String nearestUrl(String[] listed, int rendition){
+        for (int distance = 0; distance < RENDITIONS; distance++) {
+            if (rendition + distance < RENDITIONS && listed[rendition + distance] != null) {
+                return listed[rendition + distance];
+            }
+            if (rendition - distance >= 0 && listed[rendition - distance] != null) {
+                return listed[rendition - distance];
+            }
+        }
+        throw new IllegalStateException("Track without a URL");
+    }
+
+    /**
+     * @return the game played when a request does not ask for one
+     */
+    public static Game getDefaultGame(){
+        return defaultGame;
+    }
+
+    /**
+     * @param game the game
+     * @param dayHour the hour of the day, 0 to 23
+     * @param weather the weather
+     * @return the slot number, which stays the same when tracks are added to the manifest
+     */
+    public static int slot(Game game, int dayHour, Weather weather){
+        return (game.ordinal() * HOURS + dayHour) * WEATHERS + weather.ordinal();
+    }
+
+    /**
+     * @param game the game
+     * @param dayHour the hour of the day, 0 to 23
+     * @param weather the weather
+     * @return the track to play for the hour, falling back to another variant if the manifest has none
+     */
+    public static int find(Game game, int dayHour, Weather weather){
+        return slotTracks[slot(game, dayHour, weather)];
+    }
+
+    /**
+     * @param slot a slot number, e.g. from a stream token
+     * @return the track to play for the slot, or -1 if the slot number is out of range
+     */
+    public static int findBySlot(int slot){
+        return slot >= 0 && slot < SLOTS ? slotTracks[slot] : -1;
+    }
+
+    /**
+     * @param title a track title, e.g. from a stream token in an older format
+     * @return the track with the title, or -1 if there is none
+     */
+    public static int findByTitle(String title){
+        Integer track = title != null ? tracksByTitle.get(title) : null;
+        return track != null ? track : -1;
+    }
+
+    /**
+     * @return the rendition played for devices without recent playback failures
+     */
+    public static Rendition getDefaultRendition(){
+        return defaultRendition;
+    }
+
+    public static int size(){
+        return titles.length;
+    }
+
+    /**
+     * @param track a track number
+     * @return the slot the track was listed for in the manifest
+     */
+    public static int getSlot(int track){
+        return trackSlots[track];
+    }
+
+    /**
+     * @param track a track number
+     * @param region the region the track is streamed to
+     * @param rendition the rendition to stream
+     * @return the stream URL of the rendition, or of the nearest one listed, on the region's audio origin
+     */
+    public static String getUrl(int track, Region region, Rendition rendition){
+        return regionUrls[region.ordinal()][rendition.ordinal()][track];
+    }
+
+    /**
+     * @param track a track number
+     * @param rendition the rendition that was streamed
+     * @return the next lower rendition the manifest lists for the track, or null if there is none
+     */
+    public static Rendition getLowerRendition(int track, Rendition rendition){
+        Rendition[] renditions = Rendition.values();
+        for (int lower = rendition.ordinal() + 1; lower < RENDITIONS; lower++) {
+            if (listedRenditions[lower][track]) {
+                return renditions[lower];
+            }
+        }
+        return null;
+    }
+
+    public static String getTitle(int track){
+        return titles[track];
+    }
+
+    /**
+     * @param track a track number
+     * @return the title and separator that start every stream token of the track
+     */
+    public static String getTokenPrefix(int track){
+        return tokenPrefixes[track];
+    }
+
+    /**
+     * @param track a track number
+     * @return the length of the track's audio in milliseconds
+     */
+    public static long getDurationMillis(int track){
+        return durations[track];
+    }
+}
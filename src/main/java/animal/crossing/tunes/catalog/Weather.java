@@ -0,0 +1,33 @@
+package animal.crossing.tunes.catalog;
+
+/**
+ * The weather variants of an hour's music, with the IDs the manifest uses for them.
+ */
+public enum Weather {
+    CLEAR("clear"),
+    RAIN("rain"),
+    SNOW("snow");
+
+    private final String id;
+
+    Weather(String id){
+        this.id = id;
+    }
+
+    public String getId(){
+        return id;
+    }
+
+    /**
+     * @param id a manifest weather ID
+     * @return the weather, or null if the ID is unknown
+     */
+    public static Weather fromId(String id){
+        for(Weather weather : values()){
+            if(weather.id.equals(id)){
+                return weather;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,34 @@
+package animal.crossing.tunes.data;
+
+public class DeviceProfile {
+    public String deviceId;
+    public String countryCode;
+    public String postalCode;
+    public String timeZoneId;
+    /** When {@link #timeZoneId} was resolved, in milliseconds */
+    public long timeZoneUpdatedAt;
+    public String lastToken;
+    public PlaybackState playbackState = PlaybackState.IDLE;
+    /** The position in {@link #lastToken}'s track when {@link #playbackState} was recorded, in milliseconds */
+    public long playbackOffset;
+    /** The timestamp of the request {@link #playbackState} was recorded from, in milliseconds */
+    public long playbackUpdatedAt;
+    public long updatedAt;
+
+    public DeviceProfile(String deviceId){
+        this.deviceId = deviceId;
+    }
+
+    public DeviceProfile(DeviceProfile other){
+        this.deviceId = other.deviceId;
+        this.countryCode = other.countryCode;
+        this.postalCode = other.postalCode;
+        this.timeZoneId = other.timeZoneId;
+        this.timeZoneUpdatedAt = other.timeZoneUpdatedAt;
+        this.lastToken = other.lastToken;
+        this.playbackState = other.playbackState;
+        this.playbackOffset = other.playbackOffset;
+        this.playbackUpdatedAt = other.playbackUpdatedAt;
+        this.updatedAt = other.updatedAt;
+    }
+}
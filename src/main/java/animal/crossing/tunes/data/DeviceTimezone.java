@@ -1,9 +1,8 @@
 package animal.crossing.tunes.data;
 
 public class DeviceTimezone implements GoogleData{
-    public String dstOffset;
-    public String rawOffset;
+    public int dstOffset;
+    public int rawOffset;
     public String status;
     public String timeZoneId;
-    public String timeZoneName;
 }
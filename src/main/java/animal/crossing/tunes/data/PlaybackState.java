@@ -0,0 +1,40 @@
+package animal.crossing.tunes.data;
+
+/**
+ * Where a device is in playing the skill's tracks, as last reported by its AudioPlayer events.
+ * <ul>
+ *     <li>IDLE: nothing recorded yet</li>
+ *     <li>PLAYING: a track started (PlaybackStarted)</li>
+ *     <li>NEARLY_FINISHED: the next track has been queued (PlaybackNearlyFinished)</li>
+ *     <li>STOPPED: the user or another audio source stopped the track (PlaybackStopped)</li>
+ * </ul>
+ * A PlaybackFinished event is always followed by the queued track starting, so it leaves the state as it is.
+ */
+public enum PlaybackState {
+    IDLE,
+    PLAYING,
+    NEARLY_FINISHED,
+    STOPPED;
+
+    /**
+     * @return whether a ResumeIntent should continue the recorded track from the recorded offset
+     */
+    public boolean isResumable(){
+        return this == STOPPED;
+    }
+
+    /**
+     * @param name a stored state name, may be null
+     * @return the state, or IDLE if the name is missing or unknown
+     */
+    public static PlaybackState fromName(String name){
+        if(name != null){
+            for(PlaybackState state : values()){
+                if(state.name().equals(name)){
+                    return state;
+                }
+            }
+        }
+        return IDLE;
+    }
+}
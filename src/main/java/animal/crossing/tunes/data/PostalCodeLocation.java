@@ -0,0 +1,16 @@
+package animal.crossing.tunes.data;
+
+/**
+ * Where a postal code is: its time zone and the coordinates it was geocoded to.
+ */
+public class PostalCodeLocation {
+    public String timeZoneId;
+    public double lat;
+    public double lng;
+
+    public PostalCodeLocation(String timeZoneId, double lat, double lng){
+        this.timeZoneId = timeZoneId;
+        this.lat = lat;
+        this.lng = lng;
+    }
+}
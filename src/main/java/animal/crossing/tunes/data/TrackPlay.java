@@ -0,0 +1,32 @@
+package animal.crossing.tunes.data;
+
+import animal.crossing.tunes.catalog.Rendition;
+import animal.crossing.tunes.region.Region;
+import com.amazon.speech.speechlet.interfaces.audioplayer.PlayBehavior;
+
+/**
+ * What a play directive should play: the catalog track, the region and rendition it streams in, where to start it
+ * and how to queue it. The stream URL and token prefix follow from the track, region and rendition,
+ * so only the values that change per request are kept.
+ */
+public class TrackPlay {
+    /** The track's number in the {@link animal.crossing.tunes.catalog.TrackCatalog} */
+    public final int track;
+    public final Region region;
+    public final Rendition rendition;
+    public final long offsetInMilliseconds;
+    public final PlayBehavior playBehavior;
+    public final String tokenSuffix;
+    public final String expectedPreviousToken;
+
+    public TrackPlay(int track, Region region, Rendition rendition, long offsetInMilliseconds, PlayBehavior playBehavior, String tokenSuffix,
+                     String expectedPreviousToken){
+        this.track = track;
+        this.region = region;
+        this.rendition = rendition;
+        this.offsetInMilliseconds = offsetInMilliseconds;
+        this.playBehavior = playBehavior;
+        this.tokenSuffix = tokenSuffix;
+        this.expectedPreviousToken = expectedPreviousToken;
+    }
+}
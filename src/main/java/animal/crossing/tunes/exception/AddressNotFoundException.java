@@ -0,0 +1,14 @@
+package animal.crossing.tunes.exception;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a device's address cannot be turned into a location, e.g. a geocode with no results.
+ */
+public class AddressNotFoundException extends IOException {
+
+    public AddressNotFoundException(String message){
+        super(message);
+    }
+
+}
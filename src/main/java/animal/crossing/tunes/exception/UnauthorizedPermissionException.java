@@ -1,6 +1,12 @@
 package animal.crossing.tunes.exception;
 
-public class UnauthorizedPermissionException extends Exception {
+import java.io.IOException;
+
+/**
+ * Thrown when the skill is not allowed to read a device setting, such as its address when the user has not granted
+ * the address permission.
+ */
+public class UnauthorizedPermissionException extends IOException {
 
     public UnauthorizedPermissionException(String message){
         super(message);
@@ -0,0 +1,14 @@
+package animal.crossing.tunes.exception;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of calling an upstream API whose circuit breaker is open, or whose rate limit is reached.
+ */
+public class UpstreamUnavailableException extends IOException {
+
+    public UpstreamUnavailableException(String message){
+        super(message);
+    }
+
+}
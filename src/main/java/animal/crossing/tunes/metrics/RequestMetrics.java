@@ -0,0 +1,242 @@
+package animal.crossing.tunes.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects stage timings and counters for one invocation and writes them as a single
+ * CloudWatch embedded metric format line when the invocation ends.
+ * <p>
+ * The metrics are bound to the handling thread. Work handed to other threads binds the metrics of the invocation
+ * that started it with {@link #callWith}. A stage that is still running when the invocation is flushed is reported
+ * with its time so far and counted as unfinished, so stages that blow the latency budget still show up.
+ * Requests handled outside of {@link #start()}, like the startup primer's, are not recorded.
+ */
+public final class RequestMetrics {
+    private static final Logger log = LoggerFactory.getLogger(RequestMetrics.class);
+
+    private static final String NAMESPACE = System.getenv("METRICS_NAMESPACE") != null
+            ? System.getenv("METRICS_NAMESPACE") : "ACTunes";
+    private static final String DIMENSION = "RequestType";
+
+    private static final RequestMetrics DISABLED = new RequestMetrics(false);
+    private static final ThreadLocal<RequestMetrics> current = new ThreadLocal<>();
+
+    public enum Stage {
+        ENVELOPE("Envelope"),
+        PROFILE_LOOKUP("ProfileLookup"),
+        TIMEZONE_SETTING("TimeZoneSetting"),
+        ADDRESS_LOOKUP("AddressLookup"),
+        GEOCODE("Geocode"),
+        TIMEZONE_LOOKUP("TimezoneLookup"),
+        ZONE_WAIT("ZoneWait"),
+        PROFILE_WAIT("ProfileWait"),
+        RESPONSE_BUILD("ResponseBuild");
+
+        private final String metricName;
+
+        Stage(String metricName){
+            this.metricName = metricName;
+        }
+    }
+
+    public enum Counter {
+        CACHE_HIT("DeviceCacheHit"),
+        CACHE_MISS("DeviceCacheMiss"),
+        TOKEN_ZONE("TokenZone"),
+        RESOLUTION_TIMEOUT("ResolutionTimeout"),
+        PROFILE_TIMEOUT("ProfileTimeout"),
+        FALLBACK_ZONE("FallbackZone"),
+        NEGATIVE_CACHE_HIT("NegativeCacheHit"),
+        CIRCUIT_OPEN("CircuitOpen"),
+        POSTAL_CODE_CACHE_HIT("PostalCodeCacheHit"),
+        POSTAL_CODE_LOOKUP_JOINED("PostalCodeLookupJoined"),
+        GEOCODE_RATE_LIMITED("GeocodeRateLimited"),
+        TIMEZONE_RATE_LIMITED("TimezoneRateLimited"),
+        RENDITION_FALLBACK("RenditionFallback"),
+        PLAYBACK_RESUMED("PlaybackResumed"),
+        UNFINISHED_STAGE("UnfinishedStage");
+
+        private final String metricName;
+
+        Counter(String metricName){
+            this.metricName = metricName;
+        }
+    }
+
+    private final boolean enabled;
+    private final long[] stageNanos = new long[Stage.values().length];
+    private final boolean[] stageRecorded = new boolean[Stage.values().length];
+    private final Map<Counter, Long> counters = new EnumMap<>(Counter.class);
+    private final List<Timer> running = new ArrayList<>();
+    private String requestType;
+    private boolean flushed;
+
+    private RequestMetrics(boolean enabled){
+        this.enabled = enabled;
+    }
+
+    /**
+     * Starts collecting metrics for the invocation being handled on this thread.
+     * @return the invocation's metrics
+     */
+    public static RequestMetrics start(){
+        RequestMetrics metrics = new RequestMetrics(true);
+        current.set(metrics);
+        return metrics;
+    }
+
+    /**
+     * @return the metrics of the invocation bound to this thread, or a recorder that ignores everything
+     */
+    public static RequestMetrics current(){
+        RequestMetrics metrics = current.get();
+        return metrics != null ? metrics : DISABLED;
+    }
+
+    public static void clear(){
+        current.remove();
+    }
+
+    /**
+     * Runs a task on this thread with {@code metrics} bound, restoring the previous binding afterwards.
+     */
+    public static <T> T callWith(RequestMetrics metrics, Callable<T> task) throws Exception {
+        RequestMetrics previous = current.get();
+        current.set(metrics);
+        try {
+            return task.call();
+        } finally {
+            if(previous != null){
+                current.set(previous);
+            } else {
+                current.remove();
+            }
+        }
+    }
+
+    /**
+     * @param requestType the request type the invocation is reported under, e.g. "LaunchRequest"
+     */
+    public synchronized void setRequestType(String requestType){
+        this.requestType = requestType;
+    }
+
+    /**
+     * Starts timing a stage. The time is added to the stage when the returned timer is stopped.
+     */
+    public synchronized Timer startTimer(Stage stage){
+        Timer timer = new Timer(stage);
+        if(enabled && !flushed){
+            running.add(timer);
+        }
+        return timer;
+    }
+
+    public synchronized void increment(Counter counter){
+        if(enabled && !flushed){
+            counters.merge(counter, 1L, Long::sum);
+        }
+    }
+
+    /**
+     * Writes the invocation's metrics as one embedded metric format line. Anything recorded afterwards is dropped.
+     */
+    public void flush(){
+        String line;
+        synchronized (this) {
+            if(!enabled || flushed){
+                return;
+            }
+            long now = System.nanoTime();
+            for(Timer timer : running){
+                addStage(timer.stage, now - timer.startNanos);
+                counters.merge(Counter.UNFINISHED_STAGE, 1L, Long::sum);
+            }
+            running.clear();
+            flushed = true;
+            line = toEmf(System.currentTimeMillis());
+        }
+        log.info(line);
+    }
+
+    private void addStage(Stage stage, long nanos){
+        stageNanos[stage.ordinal()] += nanos;
+        stageRecorded[stage.ordinal()] = true;
+    }
+
+    private String toEmf(long timestamp){
+        StringBuilder definitions = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+
+        for(Stage stage : Stage.values()){
+            if(stageRecorded[stage.ordinal()]){
+                appendDefinition(definitions, stage.metricName, "Milliseconds");
+                values.append(",\"").append(stage.metricName).append("\":")
+                        .append(stageNanos[stage.ordinal()] / (double) TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+        for(Map.Entry<Counter, Long> counter : counters.entrySet()){
+            appendDefinition(definitions, counter.getKey().metricName, "Count");
+            values.append(",\"").append(counter.getKey().metricName).append("\":").append(counter.getValue());
+        }
+
+        return "{\"_aws\":{\"Timestamp\":" + timestamp
+                + ",\"CloudWatchMetrics\":[{\"Namespace\":\"" + NAMESPACE
+                + "\",\"Dimensions\":[[\"" + DIMENSION + "\"]],\"Metrics\":[" + definitions + "]}]}"
+                + ",\"" + DIMENSION + "\":\"" + escape(requestType != null ? requestType : "Unknown") + "\""
+                + values + "}";
+    }
+
+    private static void appendDefinition(StringBuilder definitions, String name, String unit){
+        if(definitions.length() > 0){
+            definitions.append(',');
+        }
+        definitions.append("{\"Name\":\"").append(name).append("\",\"Unit\":\"").append(unit).append("\"}");
+    }
+
+    private static String escape(String value){
+        StringBuilder escaped = new StringBuilder(value.length());
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\'){
+                escaped.append('\\').append(c);
+            } else if(c >= ' '){
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Times one run of a stage.
+     */
+    public final class Timer implements AutoCloseable {
+        private final Stage stage;
+        private final long startNanos = System.nanoTime();
+
+        private Timer(Stage stage){
+            this.stage = stage;
+        }
+
+        public void stop(){
+            synchronized (RequestMetrics.this) {
+                if(running.remove(this)){
+                    addStage(stage, System.nanoTime() - startNanos);
+                }
+            }
+        }
+
+        @Override
+        public void close(){
+            stop();
+        }
+    }
+}
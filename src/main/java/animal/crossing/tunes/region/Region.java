@@ -0,0 +1,99 @@
+package animal.crossing.tunes.region;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The Alexa regions, identified by the host of the apiEndpoint in a request's SystemState.
+ * <p>
+ * Each region streams from its own audio origin, set with the AUDIO_ORIGIN_&lt;ID&gt; environment variable or
+ * system property, e.g. AUDIO_ORIGIN_EU. A region without one streams from the origin the catalog lists.
+ * ALEXA_API_ENDPOINT_&lt;ID&gt; sends a region's Alexa API calls to another endpoint, such as a proxy,
+ * instead of the apiEndpoint in the request.
+ */
+public enum Region {
+    NORTH_AMERICA("na", "api.amazonalexa.com"),
+    EUROPE("eu", "api.eu.amazonalexa.com"),
+    FAR_EAST("fe", "api.fe.amazonalexa.com");
+
+    /** The region of requests whose apiEndpoint is missing or not a known Alexa host */
+    public static final Region DEFAULT = NORTH_AMERICA;
+    /** The origin the stream URLs in the track catalog are listed under */
+    public static final String CATALOG_ORIGIN = "https://s3.amazonaws.com/actunes/";
+
+    private static final Map<String, Region> regionsByApiHost = new HashMap<>();
+
+    static {
+        for (Region region : values()) {
+            regionsByApiHost.put(region.apiHost, region);
+        }
+    }
+
+    private final String id;
+    private final String apiHost;
+    private final String audioOrigin;
+    private final String apiEndpoint;
+
+    Region(String id, String apiHost){
+        this.id = id;
+        this.apiHost = apiHost;
+
+        String suffix = id.toUpperCase(Locale.ROOT);
+        String origin = getSetting("AUDIO_ORIGIN_" + suffix);
+        this.audioOrigin = origin == null ? CATALOG_ORIGIN : origin.endsWith("/") ? origin : origin + "/";
+        this.apiEndpoint = getSetting("ALEXA_API_ENDPOINT_" + suffix);
+    }
+
+    public String getId(){
+        return id;
+    }
+
+    /**
+     * @param apiEndpoint the apiEndpoint from a request's SystemState, may be null
+     * @return the region of the endpoint's host, or {@link #DEFAULT} if the host is not a known Alexa API host
+     */
+    public static Region of(String apiEndpoint){
+        Region region = forApiHost(apiEndpoint);
+        return region != null ? region : DEFAULT;
+    }
+
+    /**
+     * @param apiEndpoint the apiEndpoint from a request's SystemState
+     * @return the endpoint to send the request's Alexa API calls to: the override configured for its region,
+     * or the apiEndpoint itself
+     */
+    public static String routeApiEndpoint(String apiEndpoint){
+        Region region = forApiHost(apiEndpoint);
+        return region != null && region.apiEndpoint != null ? region.apiEndpoint : apiEndpoint;
+    }
+
+    /**
+     * @param catalogUrl a stream URL as listed in the catalog
+     * @return the URL on the region's audio origin. URLs outside the catalog origin are left as they are.
+     */
+    public String toAudioUrl(String catalogUrl){
+        if(audioOrigin.equals(CATALOG_ORIGIN) || !catalogUrl.startsWith(CATALOG_ORIGIN)){
+            return catalogUrl;
+        }
+        return audioOrigin + catalogUrl.substring(CATALOG_ORIGIN.length());
+    }
+
+    private static Region forApiHost(String apiEndpoint){
+        if(apiEndpoint == null){
+            return null;
+        }
+        int start = apiEndpoint.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = start;
+        while(end < apiEndpoint.length() && apiEndpoint.charAt(end) != '/' && apiEndpoint.charAt(end) != ':'){
+            end++;
+        }
+        return regionsByApiHost.get(apiEndpoint.substring(start, end).toLowerCase(Locale.ROOT));
+    }
+
+    private static String getSetting(String name){
+        String value = System.getProperty(name, System.getenv(name));
+        return value == null || value.isEmpty() ? null : value;
+    }
+}
@@ -0,0 +1,61 @@
+package animal.crossing.tunes.repository;
+
+import animal.crossing.tunes.data.DeviceProfile;
+import animal.crossing.tunes.data.PlaybackState;
+
+/**
+ * Stores what the skill has learned about each device so it survives container recycling.
+ * Writes are buffered and may be persisted after {@link #save(DeviceProfile)} returns.
+ */
+public interface DeviceProfileRepository {
+
+    /**
+     * @param deviceId the device ID
+     * @return the device's profile, or null if the device is unknown
+     */
+    DeviceProfile get(String deviceId);
+
+    /**
+     * Queues the profile to be written, replacing any pending write for the same device.
+     * @param profile the profile to store
+     */
+    void save(DeviceProfile profile);
+
+    /**
+     * Records the last stream token sent to a device whose profile has already been loaded or saved.
+     * A new token resets the recorded playback state, as the recorded offset was in another track.
+     * Unknown devices are ignored so a partial profile never overwrites a stored one.
+     * @param deviceId the device ID
+     * @param token the stream token
+     */
+    void recordToken(String deviceId, String token);
+
+    /**
+     * Records an AudioPlayer event's playback state, token and offset without reading the device's profile.
+     * A device without a loaded profile gets a minimal one, which is merged into its stored profile
+     * rather than replacing it.
+     * @param deviceId the device ID
+     * @param state the state the event moves the device to
+     * @param token the stream token of the event's track
+     * @param offsetInMilliseconds the playback position in the track
+     * @param timestamp the event's timestamp in milliseconds
+     */
+    void recordPlayback(String deviceId, PlaybackState state, String token, long offsetInMilliseconds, long timestamp);
+
+    /**
+     * Writes every pending profile.
+     */
+    void flush();
+
+    /**
+     * Creates the repository configured by the DEVICE_PROFILE_TABLE environment variable.
+     * @return a DynamoDB repository for the table, or an in-memory repository if no table is configured
+     */
+    static DeviceProfileRepository fromEnvironment(){
+        String tableName = System.getenv("DEVICE_PROFILE_TABLE");
+        if(tableName == null || tableName.isEmpty()){
+            return new InMemoryDeviceProfileRepository();
+        }
+        return DynamoDbDeviceProfileRepository.create(tableName, System.getenv("DYNAMODB_ENDPOINT"));
+    }
+}
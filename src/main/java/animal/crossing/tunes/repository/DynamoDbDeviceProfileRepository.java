@@ -0,0 +1,352 @@
+package animal.crossing.tunes.repository;
+
+import animal.crossing.tunes.TunesUtil;
+import animal.crossing.tunes.cache.ExpiringCache;
+import animal.crossing.tunes.data.DeviceProfile;
+import animal.crossing.tunes.data.PlaybackState;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.model.AttributeAction;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.AttributeValueUpdate;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Device profile repository backed by a DynamoDB table with a string hash key named deviceId.
+ * Saves are coalesced per device and written behind with BatchWriteItem, either when a full batch is pending
+ * or on the flush interval. The player also flushes at the end of every invocation, as the flush thread does not
+ * run while a Lambda container is frozen. Loaded profiles are kept for PROFILE_CACHE_TTL_MINUTES, so changes written
+ * by other containers are picked up, and devices without a profile are remembered for PROFILE_MISS_TTL_MINUTES.
+ * Playback records never read the table: a device whose item is not loaded gets its playback attributes
+ * written with UpdateItem, which leaves the rest of a stored item as it is.
+ */
+public class DynamoDbDeviceProfileRepository implements DeviceProfileRepository {
+    private static final Logger log = LoggerFactory.getLogger(DynamoDbDeviceProfileRepository.class);
+
+    private static final int MAX_BATCH_SIZE = 25;
+    private static final int MAX_BATCH_ATTEMPTS = 3;
+
+    private static final String DEVICE_ID = "deviceId";
+    private static final String COUNTRY_CODE = "countryCode";
+    private static final String POSTAL_CODE = "postalCode";
+    private static final String TIME_ZONE_ID = "timeZoneId";
+    private static final String TIME_ZONE_UPDATED_AT = "timeZoneUpdatedAt";
+    private static final String LAST_TOKEN = "lastToken";
+    private static final String PLAYBACK_STATE = "playbackState";
+    private static final String PLAYBACK_OFFSET = "playbackOffset";
+    private static final String PLAYBACK_UPDATED_AT = "playbackUpdatedAt";
+    private static final String UPDATED_AT = "updatedAt";
+
+    private final AmazonDynamoDB dynamoDb;
+    private final String tableName;
+    private final ExpiringCache<String, DeviceProfile> loadedProfiles;
+    private final long loadedProfileTtlMillis;
+    private final ExpiringCache<String, Boolean> unknownDevices;
+    private final long unknownDeviceTtlMillis;
+    private final ConcurrentMap<String, DeviceProfile> pending = new ConcurrentHashMap<>();
+    // Playback records of devices whose stored item is not loaded, written with UpdateItem so the rest of the item stays
+    private final ConcurrentMap<String, DeviceProfile> pendingPlayback = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+
+    public DynamoDbDeviceProfileRepository(AmazonDynamoDB dynamoDb, String tableName, long flushIntervalMillis){
+        this.dynamoDb = dynamoDb;
+        this.tableName = tableName;
+        this.loadedProfiles = new ExpiringCache<>((int) TunesUtil.getEnvLong("DEVICE_CACHE_MAX_SIZE", 10000));
+        this.loadedProfileTtlMillis = TimeUnit.MINUTES.toMillis(TunesUtil.getEnvLong("PROFILE_CACHE_TTL_MINUTES", 15));
+        this.unknownDevices = new ExpiringCache<>((int) TunesUtil.getEnvLong("DEVICE_CACHE_MAX_SIZE", 10000));
+        this.unknownDeviceTtlMillis = TimeUnit.MINUTES.toMillis(TunesUtil.getEnvLong("PROFILE_MISS_TTL_MINUTES", 5));
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "device-profile-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a repository using the default AWS credentials and the Lambda's region.
+     * @param tableName the DynamoDB table name
+     * @param endpoint an endpoint override such as a DynamoDB Local URL, or null
+     * @return the repository
+     */
+    public static DynamoDbDeviceProfileRepository create(String tableName, String endpoint){
+        AmazonDynamoDBClient client = new AmazonDynamoDBClient();
+        if(endpoint != null && !endpoint.isEmpty()){
+            client.setEndpoint(endpoint);
+        } else if(System.getenv("AWS_REGION") != null){
+            client.setRegion(Region.getRegion(Regions.fromName(System.getenv("AWS_REGION"))));
+        }
+
+        long flushInterval = TunesUtil.getEnvLong("PROFILE_FLUSH_INTERVAL_MS", 5000);
+        log.info("Using DynamoDB table {} for device profiles (flush interval {} ms)", tableName, flushInterval);
+        return new DynamoDbDeviceProfileRepository(client, tableName, flushInterval);
+    }
+
+    @Override
+    public DeviceProfile get(String deviceId) {
+        DeviceProfile profile = pending.get(deviceId);
+        if(profile == null){
+            profile = loadedProfiles.get(deviceId);
+        }
+        if(profile != null){
+            return profile;
+        }
+        DeviceProfile playback = pendingPlayback.get(deviceId);
+        if(unknownDevices.get(deviceId) != null){
+            return playback;
+        }
+
+        GetItemRequest request = new GetItemRequest()
+                .withTableName(tableName)
+                .withKey(Collections.singletonMap(DEVICE_ID, new AttributeValue(deviceId)));
+        try {
+            GetItemResult result = dynamoDb.getItem(request);
+            if(result.getItem() == null){
+                unknownDevices.put(deviceId, Boolean.TRUE, System.currentTimeMillis() + unknownDeviceTtlMillis);
+                return playback;
+            }
+            profile = toProfile(result.getItem());
+            if(playback != null){
+                // The stored item is known now, so the playback record is written with the whole profile
+                copyPlayback(playback, profile);
+                save(profile);
+            } else {
+                loadedProfiles.put(deviceId, profile, System.currentTimeMillis() + loadedProfileTtlMillis);
+            }
+            return profile;
+        } catch (AmazonClientException e) {
+            log.error("Error reading device profile from DynamoDB.", e);
+            return playback;
+        }
+    }
+
+    @Override
+    public void save(DeviceProfile profile) {
+        profile.updatedAt = System.currentTimeMillis();
+        loadedProfiles.put(profile.deviceId, profile, profile.updatedAt + loadedProfileTtlMillis);
+        pending.put(profile.deviceId, profile);
+        unknownDevices.invalidate(profile.deviceId);
+        DeviceProfile playback = pendingPlayback.get(profile.deviceId);
+        if(playback != null && playback.playbackUpdatedAt <= profile.playbackUpdatedAt){
+            pendingPlayback.remove(profile.deviceId, playback);
+        }
+
+        if(pending.size() >= MAX_BATCH_SIZE){
+            flusher.execute(this::flush);
+        }
+    }
+
+    @Override
+    public void recordToken(String deviceId, String token) {
+        DeviceProfile profile = pending.get(deviceId);
+        if(profile == null){
+            profile = loadedProfiles.getStale(deviceId);
+        }
+        if(profile == null){
+            pendingPlayback.computeIfPresent(deviceId, (id, playback) -> {
+                if(token.equals(playback.lastToken)){
+                    return playback;
+                }
+                DeviceProfile updated = new DeviceProfile(playback);
+                updated.lastToken = token;
+                updated.playbackState = PlaybackState.IDLE;
+                updated.updatedAt = System.currentTimeMillis();
+                return updated;
+            });
+            return;
+        }
+        if(token.equals(profile.lastToken)){
+            return;
+        }
+
+        DeviceProfile updated = new DeviceProfile(profile);
+        updated.lastToken = token;
+        updated.playbackState = PlaybackState.IDLE;
+        save(updated);
+    }
+
+    @Override
+    public void recordPlayback(String deviceId, PlaybackState state, String token, long offsetInMilliseconds, long timestamp) {
+        DeviceProfile profile = pending.get(deviceId);
+        if(profile == null){
+            profile = loadedProfiles.getStale(deviceId);
+        }
+
+        DeviceProfile updated = profile != null ? new DeviceProfile(profile) : new DeviceProfile(deviceId);
+        updated.lastToken = token;
+        updated.playbackState = state;
+        updated.playbackOffset = offsetInMilliseconds;
+        updated.playbackUpdatedAt = timestamp;
+        if(profile != null){
+            save(updated);
+        } else {
+            updated.updatedAt = System.currentTimeMillis();
+            pendingPlayback.put(deviceId, updated);
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        flushPlayback();
+        if(pending.isEmpty()){
+            return;
+        }
+
+        List<DeviceProfile> profiles = new ArrayList<>();
+        for(String deviceId : new ArrayList<>(pending.keySet())){
+            DeviceProfile profile = pending.remove(deviceId);
+            if(profile != null){
+                profiles.add(profile);
+            }
+        }
+
+        for(int i = 0; i < profiles.size(); i += MAX_BATCH_SIZE){
+            List<DeviceProfile> batch = profiles.subList(i, Math.min(i + MAX_BATCH_SIZE, profiles.size()));
+            writeBatch(batch);
+        }
+        log.info("Flushed {} device profiles to DynamoDB", profiles.size());
+    }
+
+    private void flushPlayback(){
+        for(String deviceId : new ArrayList<>(pendingPlayback.keySet())){
+            DeviceProfile playback = pendingPlayback.remove(deviceId);
+            if(playback == null){
+                continue;
+            }
+
+            Map<String, AttributeValueUpdate> updates = new HashMap<>();
+            updates.put(LAST_TOKEN, new AttributeValueUpdate(new AttributeValue(playback.lastToken), AttributeAction.PUT));
+            updates.put(PLAYBACK_STATE, new AttributeValueUpdate(new AttributeValue(playback.playbackState.name()),
+                    AttributeAction.PUT));
+            updates.put(PLAYBACK_OFFSET, new AttributeValueUpdate(
+                    new AttributeValue().withN(String.valueOf(playback.playbackOffset)), AttributeAction.PUT));
+            updates.put(PLAYBACK_UPDATED_AT, new AttributeValueUpdate(
+                    new AttributeValue().withN(String.valueOf(playback.playbackUpdatedAt)), AttributeAction.PUT));
+            updates.put(UPDATED_AT, new AttributeValueUpdate(
+                    new AttributeValue().withN(String.valueOf(playback.updatedAt)), AttributeAction.PUT));
+            try {
+                dynamoDb.updateItem(new UpdateItemRequest()
+                        .withTableName(tableName)
+                        .withKey(Collections.singletonMap(DEVICE_ID, new AttributeValue(deviceId)))
+                        .withAttributeUpdates(updates));
+            } catch (AmazonClientException e) {
+                log.error("Error writing playback state to DynamoDB.", e);
+                pendingPlayback.putIfAbsent(deviceId, playback);
+            }
+        }
+    }
+
+    private static void copyPlayback(DeviceProfile from, DeviceProfile to){
+        to.lastToken = from.lastToken;
+        to.playbackState = from.playbackState;
+        to.playbackOffset = from.playbackOffset;
+        to.playbackUpdatedAt = from.playbackUpdatedAt;
+    }
+
+    private void writeBatch(List<DeviceProfile> batch){
+        List<WriteRequest> writeRequests = new ArrayList<>(batch.size());
+        for(DeviceProfile profile : batch){
+            writeRequests.add(new WriteRequest().withPutRequest(new PutRequest().withItem(toItem(profile))));
+        }
+
+        Map<String, List<WriteRequest>> requestItems = Collections.singletonMap(tableName, writeRequests);
+        try {
+            for(int attempt = 1; attempt <= MAX_BATCH_ATTEMPTS && requestItems != null && !requestItems.isEmpty(); attempt++){
+                BatchWriteItemResult result = dynamoDb.batchWriteItem(new BatchWriteItemRequest().withRequestItems(requestItems));
+                requestItems = result.getUnprocessedItems();
+                if(requestItems != null && !requestItems.isEmpty() && attempt < MAX_BATCH_ATTEMPTS){
+                    Thread.sleep(50L << attempt);
+                }
+            }
+            if(requestItems != null && !requestItems.isEmpty()){
+                log.warn("{} device profiles were not written after {} attempts.",
+                        requestItems.get(tableName).size(), MAX_BATCH_ATTEMPTS);
+                requeue(batch);
+            }
+        } catch (AmazonClientException e) {
+            log.error("Error writing device profiles to DynamoDB.", e);
+            requeue(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            requeue(batch);
+        }
+    }
+
+    private void requeue(List<DeviceProfile> batch){
+        // A newer save for the same device wins over the failed write
+        for(DeviceProfile profile : batch){
+            pending.putIfAbsent(profile.deviceId, profile);
+        }
+    }
+
+    private static Map<String, AttributeValue> toItem(DeviceProfile profile){
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put(DEVICE_ID, new AttributeValue(profile.deviceId));
+        putIfPresent(item, COUNTRY_CODE, profile.countryCode);
+        putIfPresent(item, POSTAL_CODE, profile.postalCode);
+        putIfPresent(item, TIME_ZONE_ID, profile.timeZoneId);
+        if(profile.timeZoneId != null){
+            item.put(TIME_ZONE_UPDATED_AT, new AttributeValue().withN(String.valueOf(profile.timeZoneUpdatedAt)));
+        }
+        putIfPresent(item, LAST_TOKEN, profile.lastToken);
+        if(profile.playbackState != PlaybackState.IDLE){
+            item.put(PLAYBACK_STATE, new AttributeValue(profile.playbackState.name()));
+            item.put(PLAYBACK_OFFSET, new AttributeValue().withN(String.valueOf(profile.playbackOffset)));
+            item.put(PLAYBACK_UPDATED_AT, new AttributeValue().withN(String.valueOf(profile.playbackUpdatedAt)));
+        }
+        item.put(UPDATED_AT, new AttributeValue().withN(String.valueOf(profile.updatedAt)));
+        return item;
+    }
+
+    private static void putIfPresent(Map<String, AttributeValue> item, String name, String value){
+        if(value != null && !value.isEmpty()){
+            item.put(name, new AttributeValue(value));
+        }
+    }
+
+    private static DeviceProfile toProfile(Map<String, AttributeValue> item){
+        DeviceProfile profile = new DeviceProfile(item.get(DEVICE_ID).getS());
+        profile.countryCode = getString(item, COUNTRY_CODE);
+        profile.postalCode = getString(item, POSTAL_CODE);
+        profile.timeZoneId = getString(item, TIME_ZONE_ID);
+        profile.timeZoneUpdatedAt = getLong(item, TIME_ZONE_UPDATED_AT);
+        profile.lastToken = getString(item, LAST_TOKEN);
+        profile.playbackState = PlaybackState.fromName(getString(item, PLAYBACK_STATE));
+        profile.playbackOffset = getLong(item, PLAYBACK_OFFSET);
+        profile.playbackUpdatedAt = getLong(item, PLAYBACK_UPDATED_AT);
+        profile.updatedAt = getLong(item, UPDATED_AT);
+        return profile;
+    }
+
+    private static long getLong(Map<String, AttributeValue> item, String name){
+        AttributeValue value = item.get(name);
+        return value != null && value.getN() != null ? Long.parseLong(value.getN()) : 0;
+    }
+
+    private static String getString(Map<String, AttributeValue> item, String name){
+        AttributeValue value = item.get(name);
+        return value != null ? value.getS() : null;
+    }
+}
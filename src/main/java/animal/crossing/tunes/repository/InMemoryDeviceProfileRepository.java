@@ -0,0 +1,57 @@
+package animal.crossing.tunes.repository;
+
+import animal.crossing.tunes.data.DeviceProfile;
+import animal.crossing.tunes.data.PlaybackState;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps device profiles in memory only. Used when no DynamoDB table is configured and for local runs.
+ */
+public class InMemoryDeviceProfileRepository implements DeviceProfileRepository {
+
+    private final ConcurrentMap<String, DeviceProfile> profiles = new ConcurrentHashMap<>();
+
+    @Override
+    public DeviceProfile get(String deviceId) {
+        return profiles.get(deviceId);
+    }
+
+    @Override
+    public void save(DeviceProfile profile) {
+        profile.updatedAt = System.currentTimeMillis();
+        profiles.put(profile.deviceId, profile);
+    }
+
+    @Override
+    public void recordToken(String deviceId, String token) {
+        profiles.computeIfPresent(deviceId, (id, profile) -> {
+            if(token.equals(profile.lastToken)){
+                return profile;
+            }
+            DeviceProfile updated = new DeviceProfile(profile);
+            updated.lastToken = token;
+            updated.playbackState = PlaybackState.IDLE;
+            updated.updatedAt = System.currentTimeMillis();
+            return updated;
+        });
+    }
+
+    @Override
+    public void recordPlayback(String deviceId, PlaybackState state, String token, long offsetInMilliseconds, long timestamp) {
+        profiles.compute(deviceId, (id, profile) -> {
+            DeviceProfile updated = profile != null ? new DeviceProfile(profile) : new DeviceProfile(id);
+            updated.lastToken = token;
+            updated.playbackState = state;
+            updated.playbackOffset = offsetInMilliseconds;
+            updated.playbackUpdatedAt = timestamp;
+            updated.updatedAt = System.currentTimeMillis();
+            return updated;
+        });
+    }
+
+    @Override
+    public void flush() {
+    }
+}
@@ -1,13 +1,11 @@
 package animal.crossing.tunes.service;
 
 import animal.crossing.tunes.data.DeviceAddress;
-import com.google.gson.Gson;
+import animal.crossing.tunes.exception.UnauthorizedPermissionException;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,6 +14,8 @@ import java.io.IOException;
 public class AlexaDeviceAddressClient {
     private static final Logger log = LoggerFactory.getLogger(AlexaDeviceAddressClient.class);
 
+    private static final CircuitBreaker circuitBreaker = CircuitBreaker.fromEnvironment("Alexa device address API");
+
     private String deviceId;
     private String apiAccessToken;
     private String apiEndpoint;
@@ -26,7 +26,16 @@ public class AlexaDeviceAddressClient {
         this.apiEndpoint = apiEndpoint;
     }
 
+    /**
+     * @return the device's country and postal code
+     * @throws UnauthorizedPermissionException if the user has not granted the address permission
+     * @throws IOException if the API cannot be reached, fails, or its circuit breaker is open
+     */
     public DeviceAddress getAddress() throws IOException {
+        return circuitBreaker.call(this::requestAddress);
+    }
+
+    private DeviceAddress requestAddress() throws IOException {
         final String BASE_API_PATH = "/v1/devices/";
         final String SETTINGS_PATH = "/settings/";
         final String COUNTRY_AND_POSTAL_CODE_PATH = "address/countryAndPostalCode";
@@ -37,31 +46,28 @@ public class AlexaDeviceAddressClient {
 
         HttpGet httpGet = new HttpGet(requestUrl);
 
-        httpGet.setHeader("Host", "api.amazonalexa.com");
         httpGet.setHeader("Accept", "application/json");
         httpGet.setHeader("Authorization", "Bearer " + apiAccessToken);
 
         log.info("Executing request " + httpGet.getRequestLine());
 
-        CloseableHttpClient httpClient = HttpClients.createDefault();
+        CloseableHttpClient httpClient = SharedHttpClient.getClient();
 
         log.info("Calling Alexa API to get device address.");
-        String responseBody = httpClient.execute(httpGet, (response) -> {
+        DeviceAddress deviceAddress = httpClient.execute(httpGet, (response) -> {
             int status = response.getStatusLine().getStatusCode();
             log.info("Response Status: {}", status);
             if (status == 200) {
                 HttpEntity entity = response.getEntity();
-                return (entity != null) ? EntityUtils.toString(entity) : null;
+                return (entity != null) ? DeviceAddressParser.INSTANCE.parse(entity) : null;
             } else if(status == 403){
-                log.info("Unauthorized permissions to view address of device ID: {)", deviceId);
-                throw new ClientProtocolException("Failed to get device address.");
+                log.info("Unauthorized permissions to view address of device ID: {}", deviceId);
+                throw new UnauthorizedPermissionException("Failed to get device address.");
             } else {
                 throw new ClientProtocolException("Unexpected response status: " + status);
             }
         });
-
-        Gson gson = new Gson();
-        DeviceAddress deviceAddress = gson.fromJson(responseBody, DeviceAddress.class);
+        log.info("HTTP pool: {}", SharedHttpClient.getPoolStats());
 
         return deviceAddress;
     }
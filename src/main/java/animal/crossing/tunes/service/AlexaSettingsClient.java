@@ -0,0 +1,74 @@
+package animal.crossing.tunes.service;
+
+import animal.crossing.tunes.exception.UnauthorizedPermissionException;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Reads the device's time zone from the Alexa settings API.
+ * The setting needs no permission beyond the request's API access token, and answers with the IANA zone ID
+ * in a single call, where the address needs a postal code lookup on top.
+ */
+public class AlexaSettingsClient {
+    private static final Logger log = LoggerFactory.getLogger(AlexaSettingsClient.class);
+
+    private static final CircuitBreaker circuitBreaker = CircuitBreaker.fromEnvironment("Alexa settings API");
+
+    private String deviceId;
+    private String apiAccessToken;
+    private String apiEndpoint;
+
+    public AlexaSettingsClient(String deviceId, String apiAccessToken, String apiEndpoint){
+        this.deviceId = deviceId;
+        this.apiAccessToken = apiAccessToken;
+        this.apiEndpoint = apiEndpoint;
+    }
+
+    /**
+     * @return the device's IANA time zone ID, or null if the device has none set
+     * @throws UnauthorizedPermissionException if the API rejects the access token
+     * @throws IOException if the API cannot be reached, fails, or its circuit breaker is open
+     */
+    public String getTimeZoneId() throws IOException {
+        return circuitBreaker.call(this::requestTimeZone);
+    }
+
+    private String requestTimeZone() throws IOException {
+        String requestUrl = apiEndpoint + "/v2/devices/" + deviceId + "/settings/System.timeZone";
+        log.info("Device time zone request will be made to the following URL: {}", requestUrl);
+
+        HttpGet httpGet = new HttpGet(requestUrl);
+        httpGet.setHeader("Accept", "application/json");
+        httpGet.setHeader("Authorization", "Bearer " + apiAccessToken);
+
+        CloseableHttpClient httpClient = SharedHttpClient.getClient();
+
+        log.info("Calling Alexa API to get device time zone.");
+        String timeZoneId = httpClient.execute(httpGet, (response) -> {
+            int status = response.getStatusLine().getStatusCode();
+            log.info("Response Status: {}", status);
+            if (status == 200) {
+                HttpEntity entity = response.getEntity();
+                return (entity != null) ? TimeZoneSettingParser.INSTANCE.parse(entity) : null;
+            } else if (status == 204 || status == 404) {
+                log.info("No time zone set for device ID: {}", deviceId);
+                return null;
+            } else if (status == 403) {
+                log.info("Unauthorized to read the time zone of device ID: {}", deviceId);
+                throw new UnauthorizedPermissionException("Failed to get device time zone.");
+            } else {
+                throw new ClientProtocolException("Unexpected response status: " + status);
+            }
+        });
+        log.info("HTTP pool: {}", SharedHttpClient.getPoolStats());
+
+        return timeZoneId;
+    }
+
+}
@@ -0,0 +1,119 @@
+package animal.crossing.tunes.service;
+
+import animal.crossing.tunes.TunesUtil;
+import animal.crossing.tunes.exception.AddressNotFoundException;
+import animal.crossing.tunes.exception.UnauthorizedPermissionException;
+import animal.crossing.tunes.exception.UpstreamUnavailableException;
+import animal.crossing.tunes.metrics.RequestMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Stops calling an upstream API after repeated failures and lets a single probe through once it has been open
+ * for a while. The probe closes the circuit if it succeeds and opens it again if it fails.
+ * Errors, timeouts and unexpected responses count as failures. A denied permission or an address
+ * that cannot be found is an answer about the device, not a sign the upstream is unhealthy, so it does not.
+ */
+public class CircuitBreaker {
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * A call to the upstream.
+     */
+    public interface Call<T> {
+        T execute() throws IOException;
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+
+    public CircuitBreaker(String name, int failureThreshold, long openMillis){
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Creates a breaker using the CIRCUIT_FAILURE_THRESHOLD and CIRCUIT_OPEN_MS environment variables.
+     * @param name the upstream's name, used in logs
+     * @return the configured breaker
+     */
+    public static CircuitBreaker fromEnvironment(String name){
+        int failureThreshold = (int) TunesUtil.getEnvLong("CIRCUIT_FAILURE_THRESHOLD", 5);
+        long openMillis = TunesUtil.getEnvLong("CIRCUIT_OPEN_MS", 30000);
+        return new CircuitBreaker(name, failureThreshold, openMillis);
+    }
+
+    /**
+     * Makes the call if the circuit allows it and records the outcome.
+     * @return the call's result
+     * @throws UpstreamUnavailableException if the circuit is open
+     * @throws IOException if the call fails
+     */
+    public <T> T call(Call<T> call) throws IOException {
+        if(!allowRequest()){
+            RequestMetrics.current().increment(RequestMetrics.Counter.CIRCUIT_OPEN);
+            throw new UpstreamUnavailableException("Circuit for " + name + " is open");
+        }
+
+        try {
+            T result = call.execute();
+            recordSuccess();
+            return result;
+        } catch (UnauthorizedPermissionException | AddressNotFoundException e) {
+            recordSuccess();
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            recordFailure();
+            throw e;
+        }
+    }
+
+    private synchronized boolean allowRequest(){
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if(System.currentTimeMillis() - openedAt < openMillis){
+                    return false;
+                }
+                log.info("Probing {} after the circuit was open for {} ms", name, openMillis);
+                state = State.HALF_OPEN;
+                return true;
+            default:
+                // Only one probe at a time
+                return false;
+        }
+    }
+
+    private synchronized void recordSuccess(){
+        if(state != State.CLOSED){
+            log.info("Circuit for {} closed", name);
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    private synchronized void recordFailure(){
+        consecutiveFailures++;
+        if(state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)){
+            log.warn("Circuit for {} opened after {} consecutive failures", name, consecutiveFailures);
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + ": " + state + ", consecutiveFailures=" + consecutiveFailures;
+    }
+}
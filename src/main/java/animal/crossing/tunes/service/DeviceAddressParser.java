@@ -0,0 +1,45 @@
+package animal.crossing.tunes.service;
+
+import animal.crossing.tunes.data.DeviceAddress;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Parses the Alexa country and postal code response.
+ */
+public class DeviceAddressParser implements JsonResponseParser<DeviceAddress> {
+
+    public static final DeviceAddressParser INSTANCE = new DeviceAddressParser();
+
+    @Override
+    public DeviceAddress parse(JsonReader reader) throws IOException {
+        DeviceAddress deviceAddress = new DeviceAddress();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "countryCode":
+                    deviceAddress.countryCode = nextNullableString(reader);
+                    break;
+                case "postalCode":
+                    deviceAddress.postalCode = nextNullableString(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return deviceAddress;
+    }
+
+    private String nextNullableString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+}
@@ -0,0 +1,352 @@
+package animal.crossing.tunes.service;
+
+import animal.crossing.tunes.TunesUtil;
+import animal.crossing.tunes.cache.DeviceZoneCache;
+import animal.crossing.tunes.cache.NegativeLookupCache;
+import animal.crossing.tunes.cache.PostalCodeZoneCache;
+import animal.crossing.tunes.data.DeviceAddress;
+import animal.crossing.tunes.data.DeviceProfile;
+import animal.crossing.tunes.data.PostalCodeLocation;
+import animal.crossing.tunes.exception.AddressNotFoundException;
+import animal.crossing.tunes.exception.UnauthorizedPermissionException;
+import animal.crossing.tunes.exception.UpstreamUnavailableException;
+import animal.crossing.tunes.metrics.RequestMetrics;
+import animal.crossing.tunes.repository.DeviceProfileRepository;
+import com.google.gson.JsonSyntaxException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.time.ZoneId;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the time zone of an Alexa device asynchronously:
+ * the zone stored in the device profile while it is recent, then the device's time zone setting from the Alexa settings API.
+ * If the setting is unavailable, the Alexa device address is resolved with the offline postal code index,
+ * then Google geocode and timezone as a fallback. Google lookups are cached per postal code and shared by every device
+ * with that postal code, and rate limited with priority for requests a user is waiting on. A lookup over the limit
+ * fails the resolution at once, so the caller falls back instead of waiting. Newly resolved zones are saved to the
+ * device profile, and an outdated stored zone is only used when the zone cannot be resolved again.
+ * A missing time zone setting and a denied or unlocatable address are remembered separately for a while, so each
+ * only skips its own lookup. Devices with both resolve to null without any calls.
+ * A resolution keeps running after the caller stops waiting for it, so its result still lands in the cache
+ * for the device's next request.
+ */
+public class DeviceTimeResolver {
+    private static final Logger log = LoggerFactory.getLogger(DeviceTimeResolver.class);
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            (int) TunesUtil.getEnvLong("RESOLUTION_THREADS", 4),
+            runnable -> {
+                Thread thread = new Thread(runnable, "device-time-resolver");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private static final long STORED_ZONE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(
+            TunesUtil.getEnvLong("STORED_ZONE_TTL_MINUTES", TimeUnit.DAYS.toMinutes(7)));
+
+    private final DeviceZoneCache deviceZoneCache;
+    private final NegativeLookupCache negativeCache;
+    private final PostalCodeZoneCache postalCodeCache;
+    private final OfflineTimeZoneResolver offlineResolver;
+    private final DeviceProfileRepository profileRepository;
+    private final ConcurrentMap<String, CompletableFuture<ZoneId>> inFlight = new ConcurrentHashMap<>();
+
+    public DeviceTimeResolver(DeviceZoneCache deviceZoneCache, NegativeLookupCache negativeCache,
+                              PostalCodeZoneCache postalCodeCache, OfflineTimeZoneResolver offlineResolver,
+                              DeviceProfileRepository profileRepository){
+        this.deviceZoneCache = deviceZoneCache;
+        this.negativeCache = negativeCache;
+        this.postalCodeCache = postalCodeCache;
+        this.offlineResolver = offlineResolver;
+        this.profileRepository = profileRepository;
+    }
+
+    /**
+     * Starts resolving the device's time zone, or joins the resolution already running for the device.
+     * A resolved zone is stored in the device zone cache.
+     * @param deviceId the device ID
+     * @param accessToken the API access token from the request's SystemState
+     * @param apiEndpoint the API endpoint from the request's SystemState
+     * @param timestamp the request's timestamp in milliseconds
+     * @param interactive whether a user is waiting on the request, which gives its Google lookups priority
+     * @return a future for the device's zone. It completes with null if neither the device's time zone setting
+     * nor its address is available.
+     */
+    public CompletableFuture<ZoneId> resolveAsync(String deviceId, String accessToken, String apiEndpoint, long timestamp,
+                                                  boolean interactive){
+        String failure = negativeCache.getAddressFailure(deviceId);
+        if(failure != null && negativeCache.hasNoTimeZoneSetting(deviceId)){
+            log.info("Skipping time zone resolution for device: no time zone setting and {}", failure);
+            RequestMetrics.current().increment(RequestMetrics.Counter.NEGATIVE_CACHE_HIT);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<ZoneId> resolution = inFlight.get(deviceId);
+        if(resolution != null){
+            log.info("Joining in-flight time zone resolution for device.");
+            return resolution;
+        }
+
+        CompletableFuture<ZoneId> started = new CompletableFuture<>();
+        resolution = inFlight.putIfAbsent(deviceId, started);
+        if(resolution != null){
+            return resolution;
+        }
+
+        // The stages are recorded in the metrics of the request that started the resolution
+        RequestMetrics metrics = RequestMetrics.current();
+        CompletableFuture
+                .supplyAsync(() -> withMetrics(metrics, () -> getStoredProfile(deviceId)), executor)
+                .thenApplyAsync(profile -> withMetrics(metrics,
+                        () -> getZone(deviceId, profile, accessToken, apiEndpoint, timestamp, interactive)), executor)
+                .whenComplete((zone, error) -> {
+                    inFlight.remove(deviceId, started);
+                    if(error != null){
+                        log.error("Error trying to determine device's time zone.", error);
+                        started.completeExceptionally(error);
+                        return;
+                    }
+                    if(zone != null){
+                        deviceZoneCache.put(deviceId, zone);
+                    }
+                    started.complete(zone);
+                });
+
+        return started;
+    }
+
+    /**
+     * Starts loading the device's stored profile on the resolver's threads,
+     * so the caller can wait for it within the request's deadline like for a zone.
+     * @param deviceId the device ID
+     * @return a future for the device's profile, which completes with null if the device has none
+     */
+    public CompletableFuture<DeviceProfile> getProfileAsync(String deviceId){
+        RequestMetrics metrics = RequestMetrics.current();
+        return CompletableFuture.supplyAsync(() -> withMetrics(metrics, () -> getStoredProfile(deviceId)), executor);
+    }
+
+    /**
+     * Guesses the zone of a country, for when the device's own zone is not known in time.
+     * @param countryCode the ISO 3166 two letter country code
+     * @return the country's most common zone, or null if unknown
+     */
+    public ZoneId getCountryZone(String countryCode){
+        return offlineResolver.resolveCountry(countryCode);
+    }
+
+    private static <T> T withMetrics(RequestMetrics metrics, Callable<T> task){
+        try {
+            return RequestMetrics.callWith(metrics, task);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private DeviceProfile getStoredProfile(String deviceId){
+        RequestMetrics.Timer timer = RequestMetrics.current().startTimer(RequestMetrics.Stage.PROFILE_LOOKUP);
+        try {
+            return profileRepository.get(deviceId);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Uses the stored zone while it is younger than STORED_ZONE_TTL_MINUTES. An older stored zone is resolved again,
+     * so a device that moved or had its time zone setting changed picks up its new zone, and is only used
+     * if the zone cannot be resolved.
+     */
+    private ZoneId getZone(String deviceId, DeviceProfile profile, String accessToken, String apiEndpoint,
+                           long timestamp, boolean interactive){
+        ZoneId storedZone = getStoredZone(profile);
+        if(storedZone != null && System.currentTimeMillis() - profile.timeZoneUpdatedAt < STORED_ZONE_TTL_MILLIS){
+            log.info("Using stored time zone {} from the device profile.", storedZone);
+            return storedZone;
+        }
+
+        try {
+            ZoneId zone = resolveAndStoreZone(deviceId, profile, accessToken, apiEndpoint, timestamp, interactive);
+            if(zone != null || storedZone == null){
+                return zone;
+            }
+        } catch (CompletionException e) {
+            if(storedZone == null){
+                throw e;
+            }
+        }
+        log.info("Using stale stored time zone {} from the device profile.", storedZone);
+        return storedZone;
+    }
+
+    private static ZoneId getStoredZone(DeviceProfile profile){
+        if(profile == null || profile.timeZoneId == null){
+            return null;
+        }
+        try {
+            return ZoneId.of(profile.timeZoneId);
+        } catch (DateTimeException e) {
+            log.info("Ignoring invalid stored time zone {}", profile.timeZoneId);
+            return null;
+        }
+    }
+
+    /**
+     * @param storedProfile the device's stored profile, may be null. Its other fields are kept when the zone is saved.
+     */
+    private ZoneId resolveAndStoreZone(String deviceId, DeviceProfile storedProfile, String accessToken,
+                                       String apiEndpoint, long timestamp, boolean interactive){
+        ZoneId settingZone = negativeCache.hasNoTimeZoneSetting(deviceId)
+                ? null : getTimeZoneSetting(deviceId, accessToken, apiEndpoint);
+        if(settingZone != null){
+            DeviceProfile profile = toUpdate(deviceId, storedProfile);
+            profile.timeZoneId = settingZone.getId();
+            profile.timeZoneUpdatedAt = System.currentTimeMillis();
+            profileRepository.save(profile);
+            return settingZone;
+        }
+
+        String addressFailure = negativeCache.getAddressFailure(deviceId);
+        if(addressFailure != null){
+            log.info("Skipping the device address lookup: {}", addressFailure);
+            RequestMetrics.current().increment(RequestMetrics.Counter.NEGATIVE_CACHE_HIT);
+            return null;
+        }
+
+        DeviceAddress deviceAddress = getDeviceLocation(deviceId, accessToken, apiEndpoint);
+        ZoneId zone = resolveZone(deviceId, deviceAddress, timestamp, interactive);
+        if(zone != null){
+            DeviceProfile profile = toUpdate(deviceId, storedProfile);
+            profile.countryCode = deviceAddress.countryCode;
+            profile.postalCode = deviceAddress.postalCode;
+            profile.timeZoneId = zone.getId();
+            profile.timeZoneUpdatedAt = System.currentTimeMillis();
+            profileRepository.save(profile);
+        }
+        return zone;
+    }
+
+    private static DeviceProfile toUpdate(String deviceId, DeviceProfile storedProfile){
+        return storedProfile != null ? new DeviceProfile(storedProfile) : new DeviceProfile(deviceId);
+    }
+
+    private ZoneId resolveZone(String deviceId, DeviceAddress deviceAddress, long timestamp, boolean interactive){
+        if(deviceAddress == null){
+            return null;
+        }
+        if(deviceAddress.countryCode == null && deviceAddress.postalCode == null){
+            log.info("The device has no address set.");
+            negativeCache.putAddressNotFound(deviceId);
+            return null;
+        }
+
+        ZoneId offlineZone = offlineResolver.resolve(deviceAddress.countryCode, deviceAddress.postalCode);
+        if(offlineZone != null){
+            log.info("Resolved {} {} offline as {}", deviceAddress.countryCode, deviceAddress.postalCode, offlineZone);
+            return offlineZone;
+        }
+
+        String addressString = deviceAddress.countryCode + "," + deviceAddress.postalCode;
+        String postalCodeKey = PostalCodeZoneCache.key(deviceAddress.countryCode, deviceAddress.postalCode);
+        try {
+            PostalCodeLocation location = postalCodeCache.getOrLoad(postalCodeKey,
+                    () -> new GoogleMapsClient().getLocation(addressString, timestamp, interactive));
+            return ZoneId.of(location.timeZoneId);
+        } catch (AddressNotFoundException e) {
+            log.info("Google Maps could not locate {}", addressString);
+            negativeCache.putAddressNotFound(deviceId);
+            return null;
+        } catch (UpstreamUnavailableException e) {
+            log.info(e.getMessage());
+            throw new CompletionException(e);
+        } catch (IOException e) {
+            log.error("Error calling the Google Maps API", e);
+            throw new CompletionException(e);
+        } catch (JsonSyntaxException e) {
+            log.error("Error when deserialzing JSON string to POJO", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Calls the Alexa settings API for the device's time zone.
+     * A device with no time zone set is remembered in the negative cache. Failed calls are not, so a transient
+     * failure does not keep the setting from being read on the next request.
+     * All parameters are from the request's SystemState
+     * @return the device's zone, or null if it has none set, the setting is not a valid zone, or the call failed
+     */
+    private ZoneId getTimeZoneSetting(String deviceId, String accessToken, String apiEndpoint){
+        AlexaSettingsClient settingsClient = new AlexaSettingsClient(deviceId, accessToken, apiEndpoint);
+
+        String timeZoneId = null;
+        RequestMetrics.Timer timer = RequestMetrics.current().startTimer(RequestMetrics.Stage.TIMEZONE_SETTING);
+        try {
+            timeZoneId = settingsClient.getTimeZoneId();
+            if(timeZoneId == null || timeZoneId.isEmpty()){
+                negativeCache.putNoTimeZoneSetting(deviceId);
+            }
+        } catch (UpstreamUnavailableException e) {
+            log.info(e.getMessage());
+        } catch (IOException | JsonSyntaxException e) {
+            log.info("Exception when trying to get device time zone setting.", e);
+        } finally {
+            timer.stop();
+        }
+        if(timeZoneId == null || timeZoneId.isEmpty()){
+            return null;
+        }
+
+        try {
+            ZoneId zone = ZoneId.of(timeZoneId);
+            log.info("Using time zone {} from the device settings.", zone);
+            return zone;
+        } catch (DateTimeException e) {
+            log.info("Ignoring invalid time zone setting {}", timeZoneId);
+            return null;
+        }
+    }
+
+    /**
+     * Method to call the Alexa API to get the location of the Alexa device.
+     * All parameters are from the request's SystemState
+     * @param accessToken The API access token
+     * @param deviceId The device ID
+     * @param apiEndpoint The API endpoint value
+     * @return The device's country and postal code.
+     * Or null if there was a permissions issue or an unexpected error.
+     */
+    private DeviceAddress getDeviceLocation(String deviceId, String accessToken, String apiEndpoint){
+        AlexaDeviceAddressClient addressClient
+                = new AlexaDeviceAddressClient(deviceId, accessToken, apiEndpoint);
+
+        DeviceAddress deviceAddress = null;
+        RequestMetrics.Timer timer = RequestMetrics.current().startTimer(RequestMetrics.Stage.ADDRESS_LOOKUP);
+        try {
+            deviceAddress = addressClient.getAddress();
+        } catch (UnauthorizedPermissionException e) {
+            log.info("The user has not granted the address permission.");
+            negativeCache.putPermissionDenied(deviceId);
+        } catch (UpstreamUnavailableException e) {
+            log.info(e.getMessage());
+        } catch (IOException e) {
+            log.info("Exception when trying to get device address.", e);
+        } finally {
+            timer.stop();
+        }
+
+        return deviceAddress;
+    }
+}
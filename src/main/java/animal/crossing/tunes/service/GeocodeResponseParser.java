@@ -0,0 +1,94 @@
+package animal.crossing.tunes.service;
+
+import animal.crossing.tunes.data.DeviceGeocodingResponse;
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+
+/**
+ * Parses a Google geocode response, reading only the status and the location of the first result.
+ */
+public class GeocodeResponseParser implements JsonResponseParser<DeviceGeocodingResponse> {
+
+    public static final GeocodeResponseParser INSTANCE = new GeocodeResponseParser();
+
+    @Override
+    public DeviceGeocodingResponse parse(JsonReader reader) throws IOException {
+        DeviceGeocodingResponse geocode = new DeviceGeocodingResponse();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "status":
+                    geocode.status = reader.nextString();
+                    break;
+                case "error_message":
+                    geocode.errorMessage = reader.nextString();
+                    break;
+                case "results":
+                    readResults(reader, geocode);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return geocode;
+    }
+
+    private void readResults(JsonReader reader, DeviceGeocodingResponse geocode) throws IOException {
+        reader.beginArray();
+        if (reader.hasNext()) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("geometry".equals(reader.nextName())) {
+                    readGeometry(reader, geocode);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endArray();
+    }
+
+    private void readGeometry(JsonReader reader, DeviceGeocodingResponse geocode) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("location".equals(reader.nextName())) {
+                readLocation(reader, geocode);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readLocation(JsonReader reader, DeviceGeocodingResponse geocode) throws IOException {
+        boolean hasLat = false;
+        boolean hasLng = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "lat":
+                    geocode.lat = reader.nextDouble();
+                    hasLat = true;
+                    break;
+                case "lng":
+                    geocode.lng = reader.nextDouble();
+                    hasLng = true;
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        geocode.hasLocation = hasLat && hasLng;
+    }
+}
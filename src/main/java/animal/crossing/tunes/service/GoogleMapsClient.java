@@ -3,118 +3,166 @@ package animal.crossing.tunes.service;
 import animal.crossing.tunes.data.DeviceGeocodingResponse;
 import animal.crossing.tunes.data.DeviceTimezone;
 import animal.crossing.tunes.data.GoogleData;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import animal.crossing.tunes.data.PostalCodeLocation;
+import animal.crossing.tunes.exception.AddressNotFoundException;
+import animal.crossing.tunes.exception.UpstreamUnavailableException;
+import animal.crossing.tunes.metrics.RequestMetrics;
 import com.google.gson.JsonSyntaxException;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.URLEncoder;
+import java.time.DateTimeException;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.concurrent.TimeUnit;
 
 public class GoogleMapsClient {
     private static final Logger log = LoggerFactory.getLogger(GoogleMapsClient.class);
 
-    interface ResponseParser{
-        public GoogleData parseJsonString(String responseBody) throws IOException, JsonSyntaxException;
-    }
+    private static final String DEFAULT_BASE_URL = "https://maps.googleapis.com/maps/api/";
+    private static final String BASE_URL = getBaseUrl();
+
+    private static final CircuitBreaker circuitBreaker = CircuitBreaker.fromEnvironment("Google Maps API");
+    private static final RateLimiter geocodeLimiter = RateLimiter.fromEnvironment("Google geocode API",
+            "GOOGLE_GEOCODE", RequestMetrics.Counter.GEOCODE_RATE_LIMITED);
+    private static final RateLimiter timezoneLimiter = RateLimiter.fromEnvironment("Google timezone API",
+            "GOOGLE_TIMEZONE", RequestMetrics.Counter.TIMEZONE_RATE_LIMITED);
 
     /**
-     *
-     * @param deviceAddress the address of the device
+     * Geocodes the address and looks up the time zone at its coordinates.
+     * If Google returns a zone ID that is not known locally, the zone is the fixed offset in effect at the timestamp.
+     * @param deviceAddress the address of the device, e.g. a country and postal code
      * @param timestamp the request's timestamp in milliseconds
-     * @return the calculated local time in milliseconds
-     * @throws IOException
+     * @param interactive whether a user is waiting on the lookup, which lets it use the rate limits' reserve
+     * @return the zone and coordinates of the address
+     * @throws AddressNotFoundException if the address has no location
+     * @throws IOException if the API cannot be reached, fails, its circuit breaker is open or its rate limit is reached
      */
-    public long getDeviceTime(String deviceAddress, long timestamp) throws IOException, JsonSyntaxException {
-        DeviceGeocodingResponse deviceGeocode = getGeocode(deviceAddress);
+    public PostalCodeLocation getLocation(String deviceAddress, long timestamp, boolean interactive)
+            throws IOException, JsonSyntaxException {
+        acquireTokens(interactive);
+        try {
+            return circuitBreaker.call(() -> {
+                DeviceGeocodingResponse deviceGeocode;
+                String coordinates;
+                try {
+                    deviceGeocode = getGeocode(deviceAddress);
+                    coordinates = getCoordinates(deviceGeocode);
+                } catch (IOException | RuntimeException e) {
+                    // The timezone API is not called for an address without a location
+                    timezoneLimiter.release();
+                    throw e;
+                }
+                DeviceTimezone timezone = lookUpTimezone(coordinates, timestamp);
+                ZoneId zone = getZoneId(timezone, getCalculatedLocalTime(timezone, timestamp));
+                return new PostalCodeLocation(zone.getId(), deviceGeocode.lat, deviceGeocode.lng);
+            });
+        } catch (UpstreamUnavailableException e) {
+            // The circuit is open and no request was made, so the tokens are left for the probe once it half-opens
+            geocodeLimiter.release();
+            timezoneLimiter.release();
+            throw e;
+        }
+    }
 
-        String coordinates = getCoordinates(deviceGeocode);
+    /**
+     * Takes a token from both rate limits up front, so a lookup is either made in full or not started.
+     * Tokens for calls that end up not being made are released again.
+     */
+    private static void acquireTokens(boolean interactive) throws IOException {
+        geocodeLimiter.acquire(interactive);
+        try {
+            timezoneLimiter.acquire(interactive);
+        } catch (IOException e) {
+            geocodeLimiter.release();
+            throw e;
+        }
+    }
 
+    private DeviceTimezone lookUpTimezone(String coordinates, long timestamp) throws IOException, JsonSyntaxException {
         long timestampSeconds = TimeUnit.MILLISECONDS.toSeconds(timestamp);
         DeviceTimezone timezone = getTimezone(coordinates, timestampSeconds);
 
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        String prettyJson = gson.toJson(timezone);
-        log.info("Timezone JSON: {}", prettyJson);
+        log.info("Timezone: status={}, timeZoneId={}, rawOffset={}, dstOffset={}",
+                timezone.status, timezone.timeZoneId, timezone.rawOffset, timezone.dstOffset);
+        if(!"OK".equals(timezone.status)){
+            throw new ClientProtocolException("Unexpected time zone status: " + timezone.status);
+        }
 
-        return getCalculatedLocalTime(timezone, timestamp);
+        return timezone;
     }
 
-    private long getCalculatedLocalTime(DeviceTimezone timezone, long timestamp){
-        long dst = Long.valueOf(timezone.dstOffset);
-        long offset = Long.valueOf(timezone.rawOffset);
+    private ZoneId getZoneId(DeviceTimezone timezone, long localOffset){
+        try {
+            return ZoneId.of(timezone.timeZoneId);
+        } catch (DateTimeException | NullPointerException e) {
+            log.info("Unknown time zone ID {}. Using the fixed offset instead.", timezone.timeZoneId);
+            return ZoneOffset.ofTotalSeconds((int) TimeUnit.MILLISECONDS.toSeconds(localOffset));
+        }
+    }
 
-        long msDst = TimeUnit.SECONDS.toMillis(dst);
-        long msOffset = TimeUnit.SECONDS.toMillis(offset);
+    public long getCalculatedLocalTime(DeviceTimezone timezone, long timestamp){
+        long msDst = TimeUnit.SECONDS.toMillis(timezone.dstOffset);
+        long msOffset = TimeUnit.SECONDS.toMillis(timezone.rawOffset);
 
         log.info("msDst: {}, msOffset: {}", msDst, msOffset);
 
         return msDst + msOffset;
     }
 
-    private String getCoordinates(DeviceGeocodingResponse geocode){
-        DeviceGeocodingResponse.Location location = geocode.results.get(0).geometry.location;
-        String latitude = location.lat;
-        String longitude = location.lng;
+    private String getCoordinates(DeviceGeocodingResponse geocode) throws IOException {
+        if("ZERO_RESULTS".equals(geocode.status) || ("OK".equals(geocode.status) && !geocode.hasLocation)){
+            throw new AddressNotFoundException("Geocode found no location for the address.");
+        }
+        if(!geocode.hasLocation){
+            throw new ClientProtocolException("Geocode returned no location. Status: " + geocode.status
+                    + (geocode.errorMessage != null ? " (" + geocode.errorMessage + ")" : ""));
+        }
 
-        String coordinatesString = latitude + "," + longitude;
+        String coordinatesString = geocode.lat + "," + geocode.lng;
 
         log.info("Coordinates (lat,lng): {}", coordinatesString);
         return coordinatesString;
     }
 
     private DeviceGeocodingResponse getGeocode(String deviceAddress) throws IOException, JsonSyntaxException {
-        final String googleService = "https://maps.googleapis.com/maps/api/geocode/json";
+        final String googleService = BASE_URL + "geocode/json";
         final String address = "?address=" + URLEncoder.encode(deviceAddress, "UTF-8");
         final String apiKey = "&key=" + System.getenv("GEOCODE_KEY");
 
-        return makeGoogleRequest(googleService, address, apiKey,
-                responseBody -> {
-//                    JsonParser parser = new JsonParser();
-//                    JsonObject obj = parser.parse(responseBody).getAsJsonObject();
-//
-//                    JsonObject tmp = obj.get("results").getAsJsonArray()
-//                            .get(0).getAsJsonObject()
-//                            .get("geometry").getAsJsonObject()
-//                            .get("location").getAsJsonObject();
-//
-//                    String latitude = String.valueOf(tmp.get("lat").getAsDouble());
-//                    String longitude = String.valueOf(tmp.get("lng").getAsDouble());
-
-                    Gson gson = new Gson();
-                    DeviceGeocodingResponse deviceGeocode = gson.fromJson(responseBody, DeviceGeocodingResponse.class);
-                    return deviceGeocode;
-                }, DeviceGeocodingResponse.class);
+        RequestMetrics.Timer timer = RequestMetrics.current().startTimer(RequestMetrics.Stage.GEOCODE);
+        try {
+            return makeGoogleRequest(googleService, address, apiKey, GeocodeResponseParser.INSTANCE);
+        } finally {
+            timer.stop();
+        }
     }
 
     private DeviceTimezone getTimezone(String coordinates, long deviceTimestampSeconds) throws IOException, JsonSyntaxException {
-        final String googleService = "https://maps.googleapis.com/maps/api/timezone/json";
+        final String googleService = BASE_URL + "timezone/json";
         final String location = "?location=" + coordinates;
         final String timestamp = "&timestamp=" + deviceTimestampSeconds;
         final String apiKey = "&key=" + System.getenv("TIME_ZONE_KEY");
 
-        return makeGoogleRequest(googleService, location + timestamp, apiKey,
-                responseBody -> {
-                    Gson gson = new GsonBuilder().setPrettyPrinting().create();
-                    DeviceTimezone deviceTimezone = gson.fromJson(responseBody, DeviceTimezone.class);
-
-                    return deviceTimezone;
-        }, DeviceTimezone.class);
+        RequestMetrics.Timer timer = RequestMetrics.current().startTimer(RequestMetrics.Stage.TIMEZONE_LOOKUP);
+        try {
+            return makeGoogleRequest(googleService, location + timestamp, apiKey, TimezoneResponseParser.INSTANCE);
+        } finally {
+            timer.stop();
+        }
     }
 
     private <T extends GoogleData> T makeGoogleRequest(
             final String GOOGLE_SERVICE, final String PARAMETERS,
-            final String API_KEY, ResponseParser responseParser, Class<T> type) throws IOException, JsonSyntaxException{
+            final String API_KEY, JsonResponseParser<T> responseParser) throws IOException, JsonSyntaxException{
 
-        CloseableHttpClient httpClient = HttpClients.createDefault();
+        CloseableHttpClient httpClient = SharedHttpClient.getClient();
 
         String requestUrl = GOOGLE_SERVICE + PARAMETERS + API_KEY;
 
@@ -124,23 +172,33 @@ public class GoogleMapsClient {
 
         log.info("Executing request " + httpGet.getRequestLine());
 
-        String responseBody = null;
-
-        responseBody = httpClient.execute(httpGet, response -> {
+        T googleData = httpClient.execute(httpGet, response -> {
             int status = response.getStatusLine().getStatusCode();
-            if (status >= 200) {
+            if (status >= 200 && status < 300) {
                 HttpEntity entity = response.getEntity();
-                return (entity != null) ? EntityUtils.toString(entity) : null;
+                return (entity != null) ? responseParser.parse(entity) : null;
             } else {
                 throw new ClientProtocolException("Unexpected response status: " + status);
             }
         });
+        log.info("HTTP pool: {}", SharedHttpClient.getPoolStats());
 
-        if(responseBody != null){
-            GoogleData googleData = responseParser.parseJsonString(responseBody);
-            return type.cast(googleData);
+        if(googleData == null){
+            throw new ClientProtocolException("Empty response from " + GOOGLE_SERVICE);
         }
+        return googleData;
+    }
 
-        return null;
+    /**
+     * The Google Maps API can be pointed at a stub, e.g. by the load harness, with the GOOGLE_MAPS_BASE_URL
+     * environment variable or system property.
+     * @return the base URL the geocode and timezone paths are appended to
+     */
+    private static String getBaseUrl(){
+        String baseUrl = System.getProperty("GOOGLE_MAPS_BASE_URL", System.getenv("GOOGLE_MAPS_BASE_URL"));
+        if(baseUrl == null || baseUrl.isEmpty()){
+            return DEFAULT_BASE_URL;
+        }
+        return baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
     }
 }
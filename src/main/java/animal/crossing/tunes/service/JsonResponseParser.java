@@ -0,0 +1,46 @@
+package animal.crossing.tunes.service;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads an API response straight from its JSON stream, keeping only the fields the skill uses.
+ * Implementations hold no state, so one instance can be shared by every request and thread.
+ * @param <T> the type the response is parsed into
+ */
+public interface JsonResponseParser<T> {
+
+    /**
+     * @param reader the reader positioned at the start of the response body
+     * @return the parsed response
+     * @throws IOException if the stream cannot be read or is not valid JSON
+     */
+    T parse(JsonReader reader) throws IOException;
+
+    /**
+     * Parses a response entity directly from its content stream, without copying the body into a String first.
+     * @param entity the response entity
+     * @return the parsed response
+     * @throws IOException if the stream cannot be read or is not valid JSON
+     * @throws JsonSyntaxException if the JSON does not have the expected structure
+     */
+    default T parse(HttpEntity entity) throws IOException, JsonSyntaxException {
+        Charset charset = ContentType.getOrDefault(entity).getCharset();
+        if (charset == null) {
+            charset = StandardCharsets.UTF_8;
+        }
+
+        try (JsonReader reader = new JsonReader(new InputStreamReader(entity.getContent(), charset))) {
+            return parse(reader);
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+}
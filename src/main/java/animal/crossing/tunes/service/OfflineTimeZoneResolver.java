@@ -0,0 +1,171 @@
+package animal.crossing.tunes.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves a device's time zone from its country and postal code without any network calls.
+ * The bundled postal-timezones.csv index is loaded once into sorted primitive arrays:
+ * single-zone countries are answered directly by country code, the others by a binary search
+ * over postal code prefix ranges.
+ */
+public class OfflineTimeZoneResolver {
+    private static final Logger log = LoggerFactory.getLogger(OfflineTimeZoneResolver.class);
+
+    private static final String INDEX_RESOURCE = "/postal-timezones.csv";
+    private static final int COUNTRIES = 26 * 26;
+    private static final int PREFIX_BITS = 24;
+
+    private static final ZoneId[] zones;
+    private static final short[] countryZones = new short[COUNTRIES];
+    private static final byte[] prefixLengths = new byte[COUNTRIES];
+    private static final long[] rangeKeys;
+    private static final short[] rangeZones;
+
+    static {
+        Arrays.fill(countryZones, (short) -1);
+
+        List<ZoneId> zoneList = new ArrayList<>();
+        Map<String, Short> zoneIndexes = new HashMap<>();
+        List<long[]> ranges = new ArrayList<>();
+
+        try (InputStream in = OfflineTimeZoneResolver.class.getResourceAsStream(INDEX_RESOURCE);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] columns = line.split(",", -1);
+                int country = countryIndex(columns[0]);
+                String prefix = columns[1];
+
+                Short zoneIndex = zoneIndexes.get(columns[2]);
+                if (zoneIndex == null) {
+                    zoneIndex = (short) zoneList.size();
+                    zoneList.add(ZoneId.of(columns[2]));
+                    zoneIndexes.put(columns[2], zoneIndex);
+                }
+
+                if (prefix.isEmpty()) {
+                    countryZones[country] = zoneIndex;
+                } else {
+                    // A prefix of another length, or one that does not fit the key, would land in another range
+                    long encoded = encodePrefix(prefix, prefix.length());
+                    if ((prefixLengths[country] != 0 && prefixLengths[country] != prefix.length())
+                            || encoded < 0 || encoded >= 1L << PREFIX_BITS) {
+                        throw new ExceptionInInitializerError("Invalid row in " + INDEX_RESOURCE + ": " + line);
+                    }
+                    prefixLengths[country] = (byte) prefix.length();
+                    ranges.add(new long[]{key(country, encoded), zoneIndex});
+                }
+            }
+        } catch (IOException | NullPointerException e) {
+            throw new ExceptionInInitializerError("Unable to load " + INDEX_RESOURCE + ": " + e);
+        }
+
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+        rangeKeys = new long[ranges.size()];
+        rangeZones = new short[ranges.size()];
+        for (int i = 0; i < ranges.size(); i++) {
+            rangeKeys[i] = ranges.get(i)[0];
+            rangeZones[i] = (short) ranges.get(i)[1];
+        }
+        zones = zoneList.toArray(new ZoneId[0]);
+
+        log.info("Loaded offline time zone index: {} zones, {} postal code ranges", zones.length, rangeKeys.length);
+    }
+
+    /**
+     * Looks up the time zone of a postal code.
+     * @param countryCode the ISO 3166 two letter country code
+     * @param postalCode the postal code, may be null
+     * @return the time zone, or null if the country is not in the index
+     */
+    public ZoneId resolve(String countryCode, String postalCode) {
+        int country = countryIndex(countryCode);
+        if (country < 0) {
+            return null;
+        }
+
+        int prefixLength = prefixLengths[country];
+        if (prefixLength > 0 && postalCode != null) {
+            long prefix = encodePrefix(postalCode, prefixLength);
+            if (prefix >= 0) {
+                int index = Arrays.binarySearch(rangeKeys, key(country, prefix));
+                if (index < 0) {
+                    index = -index - 2;
+                }
+                if (index >= 0 && (rangeKeys[index] >>> PREFIX_BITS) == country) {
+                    return zones[rangeZones[index]];
+                }
+            }
+        }
+
+        return resolveCountry(countryCode);
+    }
+
+    /**
+     * Looks up the zone of a country, or its most common zone if the country spans several.
+     * @param countryCode the ISO 3166 two letter country code
+     * @return the time zone, or null if the country is not in the index
+     */
+    public ZoneId resolveCountry(String countryCode) {
+        int country = countryIndex(countryCode);
+        if (country < 0 || countryZones[country] < 0) {
+            return null;
+        }
+        return zones[countryZones[country]];
+    }
+
+    private static long key(int country, long prefix) {
+        return ((long) country << PREFIX_BITS) | prefix;
+    }
+
+    private static int countryIndex(String countryCode) {
+        if (countryCode == null || countryCode.length() != 2) {
+            return -1;
+        }
+        int first = Character.toUpperCase(countryCode.charAt(0)) - 'A';
+        int second = Character.toUpperCase(countryCode.charAt(1)) - 'A';
+        if (first < 0 || first >= 26 || second < 0 || second >= 26) {
+            return -1;
+        }
+        return first * 26 + second;
+    }
+
+    /**
+     * Encodes the first {@code length} letters and digits of a postal code as a base 36 number,
+     * skipping spaces and dashes.
+     * @return the encoded prefix, or -1 if the postal code is too short or has other characters
+     */
+    private static long encodePrefix(String postalCode, int length) {
+        long value = 0;
+        int used = 0;
+        for (int i = 0; i < postalCode.length() && used < length; i++) {
+            char c = postalCode.charAt(i);
+            if (c == ' ' || c == '-') {
+                continue;
+            }
+            int digit = Character.digit(c, 36);
+            if (digit < 0) {
+                return -1;
+            }
+            value = value * 36 + digit;
+            used++;
+        }
+        return used == length ? value : -1;
+    }
+}
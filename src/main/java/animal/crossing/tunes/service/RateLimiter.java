@@ -0,0 +1,98 @@
+package animal.crossing.tunes.service;
+
+import animal.crossing.tunes.TunesUtil;
+import animal.crossing.tunes.exception.UpstreamUnavailableException;
+import animal.crossing.tunes.metrics.RequestMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket that keeps calls to an upstream API within its quota.
+ * The bucket refills at a steady rate up to its burst size, and each call takes one token.
+ * Part of the burst is held back for interactive requests, which a user is waiting on:
+ * background calls are refused once the bucket is down to the reserve, interactive calls only once it is empty.
+ * A refused call is not queued, so the caller can fall back right away.
+ */
+public class RateLimiter {
+    private static final Logger log = LoggerFactory.getLogger(RateLimiter.class);
+
+    private final String name;
+    private final double tokensPerNano;
+    private final double burst;
+    private final double reserve;
+    private final RequestMetrics.Counter limitedCounter;
+
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * @param name the upstream's name, used in logs
+     * @param ratePerSecond the tokens added per second
+     * @param burst the most tokens the bucket holds
+     * @param reserve the tokens only interactive calls can take
+     * @param limitedCounter the counter incremented when a call is refused
+     */
+    public RateLimiter(String name, double ratePerSecond, double burst, double reserve, RequestMetrics.Counter limitedCounter){
+        this.name = name;
+        this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.reserve = Math.max(0, Math.min(reserve, burst - 1));
+        this.limitedCounter = limitedCounter;
+        this.tokens = burst;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Creates a limiter using the {@code <prefix>_RATE_PER_SECOND} and {@code <prefix>_BURST} environment variables,
+     * and GOOGLE_INTERACTIVE_RESERVE_PERCENT for the share of the burst held back for interactive calls.
+     * @param name the upstream's name, used in logs
+     * @param prefix the prefix of the limiter's environment variables
+     * @param limitedCounter the counter incremented when a call is refused
+     * @return the configured limiter
+     */
+    public static RateLimiter fromEnvironment(String name, String prefix, RequestMetrics.Counter limitedCounter){
+        long ratePerSecond = TunesUtil.getEnvLong(prefix + "_RATE_PER_SECOND", 50);
+        long burst = TunesUtil.getEnvLong(prefix + "_BURST", ratePerSecond);
+        long reservePercent = TunesUtil.getEnvLong("GOOGLE_INTERACTIVE_RESERVE_PERCENT", 20);
+        return new RateLimiter(name, ratePerSecond, burst, burst * reservePercent / 100.0, limitedCounter);
+    }
+
+    /**
+     * Takes a token for a call.
+     * @param interactive whether a user is waiting on the call, which lets it use the reserve
+     * @throws UpstreamUnavailableException if there is no token for the call
+     */
+    public void acquire(boolean interactive) throws UpstreamUnavailableException {
+        if(!tryAcquire(interactive)){
+            RequestMetrics.current().increment(limitedCounter);
+            throw new UpstreamUnavailableException("Rate limit for " + name + " reached");
+        }
+    }
+
+    /**
+     * Returns a token taken for a call that was not made.
+     */
+    public synchronized void release(){
+        tokens = Math.min(burst, tokens + 1);
+    }
+
+    private synchronized boolean tryAcquire(boolean interactive){
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerNano);
+        refilledAt = now;
+
+        if(tokens < (interactive ? 1 : 1 + reserve)){
+            log.info("Refusing {} call to {}, {} tokens left", interactive ? "an interactive" : "a background", name, (int) tokens);
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + ": tokens=" + (int) tokens + ", burst=" + (int) burst + ", reserve=" + (int) reserve;
+    }
+}
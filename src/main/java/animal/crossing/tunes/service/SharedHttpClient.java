@@ -0,0 +1,144 @@
+package animal.crossing.tunes.service;
+
+import animal.crossing.tunes.TunesUtil;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The container-wide HTTP client shared by every outbound API call.
+ * Connections are pooled and kept alive between requests, so a warm Lambda container reuses the
+ * TCP and TLS session of earlier invocations instead of opening a new one per lookup.
+ */
+public final class SharedHttpClient {
+    private static final Logger log = LoggerFactory.getLogger(SharedHttpClient.class);
+
+    private static final int MAX_TOTAL = (int) TunesUtil.getEnvLong("HTTP_MAX_TOTAL", 20);
+    private static final int MAX_PER_ROUTE = (int) TunesUtil.getEnvLong("HTTP_MAX_PER_ROUTE", 10);
+    private static final int CONNECT_TIMEOUT_MS = (int) TunesUtil.getEnvLong("HTTP_CONNECT_TIMEOUT_MS", 1000);
+    private static final int SOCKET_TIMEOUT_MS = (int) TunesUtil.getEnvLong("HTTP_SOCKET_TIMEOUT_MS", 2000);
+    private static final int REQUEST_TIMEOUT_MS = (int) TunesUtil.getEnvLong("HTTP_REQUEST_TIMEOUT_MS", 500);
+    private static final long KEEP_ALIVE_MS = TunesUtil.getEnvLong("HTTP_KEEP_ALIVE_MS", 60000);
+    private static final long IDLE_EVICT_MS = TunesUtil.getEnvLong("HTTP_IDLE_EVICT_MS", 30000);
+
+    private static final AtomicLong requests = new AtomicLong();
+    private static final AtomicLong connectionsCreated = new AtomicLong();
+
+    private static PoolingHttpClientConnectionManager connectionManager;
+    private static CloseableHttpClient httpClient;
+
+    private SharedHttpClient(){
+    }
+
+    /**
+     * Gets the shared client, creating it on first use.
+     * Expired and idle connections are evicted here as well because the background evictor
+     * does not run while a Lambda container is frozen between invocations.
+     * @return the shared client. Callers must not close it.
+     */
+    public static synchronized CloseableHttpClient getClient(){
+        if(httpClient == null){
+            build();
+        } else {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(IDLE_EVICT_MS, TimeUnit.MILLISECONDS);
+        }
+        return httpClient;
+    }
+
+    /**
+     * @return the pool's connection counts and how often requests reused an existing connection
+     */
+    public static synchronized String getPoolStats(){
+        if(connectionManager == null){
+            return "not initialized";
+        }
+        PoolStats stats = connectionManager.getTotalStats();
+        long requestCount = requests.get();
+        long created = connectionsCreated.get();
+        double reuseRate = requestCount == 0 ? 0 : 1 - ((double) Math.min(created, requestCount) / requestCount);
+
+        return String.format("leased=%d, available=%d, pending=%d, max=%d, requests=%d, connectionsCreated=%d, reuseRate=%.2f",
+                stats.getLeased(), stats.getAvailable(), stats.getPending(), stats.getMax(),
+                requestCount, created, reuseRate);
+    }
+
+    /**
+     * Closes the client and every pooled connection. The next {@link #getClient()} call builds a new pool.
+     * Used when the process is checkpointed or restored, since pooled sockets do not survive a snapshot.
+     */
+    public static synchronized void reset(){
+        if(httpClient == null){
+            return;
+        }
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            log.warn("Error closing the shared HTTP client.", e);
+        }
+        httpClient = null;
+        connectionManager = null;
+    }
+
+    private static void build(){
+        Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", SSLConnectionSocketFactory.getSocketFactory())
+                .build();
+
+        HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> connectionFactory = (route, config) -> {
+            connectionsCreated.incrementAndGet();
+            return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+        };
+
+        connectionManager = new PoolingHttpClientConnectionManager(socketFactories, connectionFactory);
+        connectionManager.setMaxTotal(MAX_TOTAL);
+        connectionManager.setDefaultMaxPerRoute(MAX_PER_ROUTE);
+        connectionManager.setValidateAfterInactivity(2000);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(CONNECT_TIMEOUT_MS)
+                .setSocketTimeout(SOCKET_TIMEOUT_MS)
+                .setConnectionRequestTimeout(REQUEST_TIMEOUT_MS)
+                .build();
+
+        ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return keepAlive > 0 ? Math.min(keepAlive, KEEP_ALIVE_MS) : KEEP_ALIVE_MS;
+        };
+
+        HttpRequestInterceptor requestCounter = (request, context) -> requests.incrementAndGet();
+
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .addInterceptorFirst(requestCounter)
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_EVICT_MS, TimeUnit.MILLISECONDS)
+                .build();
+
+        log.info("Created shared HTTP client (maxTotal={}, maxPerRoute={}, connectTimeout={}ms, socketTimeout={}ms)",
+                MAX_TOTAL, MAX_PER_ROUTE, CONNECT_TIMEOUT_MS, SOCKET_TIMEOUT_MS);
+    }
+}
@@ -0,0 +1,24 @@
+package animal.crossing.tunes.service;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Parses the Alexa System.timeZone setting, a bare JSON string holding the device's IANA zone ID.
+ */
+public class TimeZoneSettingParser implements JsonResponseParser<String> {
+
+    public static final TimeZoneSettingParser INSTANCE = new TimeZoneSettingParser();
+
+    @Override
+    public String parse(JsonReader reader) throws IOException {
+        reader.setLenient(true);
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+}
@@ -0,0 +1,42 @@
+package animal.crossing.tunes.service;
+
+import animal.crossing.tunes.data.DeviceTimezone;
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+
+/**
+ * Parses a Google time zone response into its status, zone ID and offsets.
+ */
+public class TimezoneResponseParser implements JsonResponseParser<DeviceTimezone> {
+
+    public static final TimezoneResponseParser INSTANCE = new TimezoneResponseParser();
+
+    @Override
+    public DeviceTimezone parse(JsonReader reader) throws IOException {
+        DeviceTimezone timezone = new DeviceTimezone();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "status":
+                    timezone.status = reader.nextString();
+                    break;
+                case "timeZoneId":
+                    timezone.timeZoneId = reader.nextString();
+                    break;
+                case "dstOffset":
+                    timezone.dstOffset = reader.nextInt();
+                    break;
+                case "rawOffset":
+                    timezone.rawOffset = reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return timezone;
+    }
+}
@@ -0,0 +1,88 @@
+package animal.crossing.tunes;
+
+import animal.crossing.tunes.catalog.Rendition;
+import animal.crossing.tunes.data.TrackPlay;
+import animal.crossing.tunes.region.Region;
+import com.amazon.speech.json.SpeechletRequestEnvelope;
+import com.amazon.speech.speechlet.SpeechletRequest;
+import com.amazon.speech.speechlet.interfaces.audioplayer.PlayBehavior;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs against the track-catalog-renditions.csv fixture, which lists every track in the high and low renditions.
+ */
+public class ACTunesPlayerTest {
+
+    private static final ZoneId ZONE = ZoneId.of("America/Los_Angeles");
+    // 10:05 in Los Angeles, so the enqueued track is still the hour's track
+    private static final Instant NOW = Instant.parse("2018-03-10T18:05:00Z");
+    private static final String LOW_RENDITION_PATH = "/actunes/low/";
+
+    private final ACTunesPlayer player = new ACTunesPlayer();
+
+    @After
+    public void tearDown(){
+        PlayResponseWriter.takePrepared();
+    }
+
+    @Test
+    public void serviceUnavailableFailureFallsBackToTheLowerRendition() throws IOException {
+        String deviceId = "amzn1.ask.device.RENDITION-FALLBACK";
+        String token = TunesUtil.getToken(TunesUtil.getTrack(NOW.toEpochMilli(), ZONE, true, Region.DEFAULT,
+                Rendition.HIGH, false));
+
+        assertNull(player.onPlaybackFailed(envelope(deviceId, "AudioPlayer.PlaybackFailed", token,
+                ",\"error\":{\"type\":\"MEDIA_ERROR_SERVICE_UNAVAILABLE\",\"message\":\"503\"}")));
+        TrackPlay replayed = PlayResponseWriter.takePrepared();
+        assertNotNull(replayed);
+        assertEquals(Rendition.LOW, replayed.rendition);
+        assertTrue(write(replayed).contains(LOW_RENDITION_PATH));
+
+        assertNull(player.onPlaybackNearlyFinished(envelope(deviceId, "AudioPlayer.PlaybackNearlyFinished",
+                TunesUtil.getToken(replayed), ",\"offsetInMilliseconds\":0")));
+        TrackPlay next = PlayResponseWriter.takePrepared();
+        assertNotNull(next);
+        assertEquals(PlayBehavior.ENQUEUE, next.playBehavior);
+        assertEquals("the device stays on the lower rendition", Rendition.LOW, next.rendition);
+        assertTrue(write(next).contains(LOW_RENDITION_PATH));
+
+        player.onPlaybackNearlyFinished(envelope("amzn1.ask.device.NO-FAILURES", "AudioPlayer.PlaybackNearlyFinished",
+                token, ",\"offsetInMilliseconds\":0"));
+        TrackPlay other = PlayResponseWriter.takePrepared();
+        assertEquals("other devices keep the default rendition", Rendition.HIGH, other.rendition);
+        assertFalse(write(other).contains(LOW_RENDITION_PATH));
+    }
+
+    private static String write(TrackPlay track) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PlayResponseWriter.write(track, output);
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends SpeechletRequest> SpeechletRequestEnvelope<T> envelope(String deviceId, String type,
+                                                                                    String token, String fields)
+            throws IOException {
+        String json = "{\"version\":\"1.0\",\"context\":{\"System\":{"
+                + "\"application\":{\"applicationId\":\"amzn1.ask.skill.TEST\"},"
+                + "\"user\":{\"userId\":\"amzn1.ask.account.TEST\"},"
+                + "\"device\":{\"deviceId\":\"" + deviceId + "\",\"supportedInterfaces\":{\"AudioPlayer\":{}}},"
+                + "\"apiEndpoint\":\"https://api.amazonalexa.com\",\"apiAccessToken\":\"\"}},"
+                + "\"request\":{\"type\":\"" + type + "\",\"requestId\":\"amzn1.echo-api.request.TEST\","
+                + "\"timestamp\":\"" + NOW + "\",\"locale\":\"en-US\",\"token\":\"" + token + "\"" + fields + "}}";
+        return (SpeechletRequestEnvelope<T>) SpeechletRequestEnvelope.fromJson(json);
+    }
+}
@@ -0,0 +1,230 @@
+package animal.crossing.tunes;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends concurrent requests for devices in several time zones to an embedded server, and checks that every response
+ * carries its own device's track and token. Signature checks are off, as they download Amazon's certificate chain,
+ * but the envelopes still go through the application ID and timestamp checks.
+ */
+public class ACTunesServerTest {
+
+    private static final int THREADS = 8;
+    private static final int REQUESTS_PER_THREAD = 40;
+    private static final int DEVICES = 40;
+    private static final String[][] ADDRESSES = {
+            {"US", "98109", "America/Los_Angeles"},
+            {"US", "10001", "America/New_York"},
+            {"AU", "2000", "Australia/Sydney"},
+            {"JP", "100-0001", "Asia/Tokyo"},
+            {"IN", "110001", "Asia/Kolkata"},
+    };
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+
+    private HttpServer alexaApi;
+    private ACTunesServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        alexaApi = startAlexaApi();
+        server = ACTunesServer.start(0, THREADS, null, false);
+    }
+
+    @After
+    public void tearDown(){
+        server.stop();
+        alexaApi.stop(0);
+    }
+
+    @Test
+    public void concurrentRequestsGetTheirOwnDevicesTrackAndToken() throws Exception {
+        URL skillUrl = new URL("http://127.0.0.1:" + server.getPort() + "/");
+        String apiEndpoint = "http://127.0.0.1:" + alexaApi.getAddress().getPort();
+        Queue<String> mismatches = new ConcurrentLinkedQueue<>();
+
+        ExecutorService clients = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for(int thread = 0; thread < THREADS; thread++){
+                int first = thread;
+                results.add(clients.submit(() -> {
+                    for(int i = 0; i < REQUESTS_PER_THREAD; i++){
+                        // Neighbouring threads work on different devices and zones at the same time
+                        int device = (first + i * THREADS) % DEVICES;
+                        String mismatch = checkRequest(skillUrl, apiEndpoint, device, (first + i) % 4);
+                        if(mismatch != null){
+                            mismatches.add("device " + device + ": " + mismatch);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for(Future<?> result : results){
+                result.get();
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+
+        assertTrue(String.join("\n", mismatches), mismatches.isEmpty());
+    }
+
+    /**
+     * Sends one request for the device and compares the response with what that device should get.
+     * @return a description of the mismatch, or null if the response is right
+     */
+    private static String checkRequest(URL skillUrl, String apiEndpoint, int device, int kind) throws IOException {
+        ZoneId zone = ZoneId.of(ADDRESSES[device % ADDRESSES.length][2]);
+        long timestamp = Instant.now().truncatedTo(ChronoUnit.SECONDS).toEpochMilli();
+        // Each device claims to be playing a different hour, so the help intent answer identifies the device
+        String deviceTitle = title(device % 24);
+        String playingToken = deviceTitle + "|test-" + device;
+
+        String requestType;
+        String extra = "";
+        long offset = TimeUnit.MINUTES.toMillis(29);
+        if(kind == 0){
+            requestType = "\"type\":\"LaunchRequest\"";
+        } else if(kind == 1){
+            requestType = "\"type\":\"IntentRequest\"";
+            extra = ",\"intent\":{\"name\":\"AMAZON.ResumeIntent\",\"confirmationStatus\":\"NONE\"}";
+        } else if(kind == 2){
+            requestType = "\"type\":\"AudioPlayer.PlaybackNearlyFinished\",\"token\":\"" + playingToken
+                    + "\",\"offsetInMilliseconds\":" + offset;
+        } else {
+            requestType = "\"type\":\"IntentRequest\"";
+            extra = ",\"intent\":{\"name\":\"AMAZON.HelpIntent\",\"confirmationStatus\":\"NONE\"}";
+        }
+
+        String applicationId = ACTunesSpeechletRequestStreamHandler.APPLICATION_ID;
+        String session = kind != 2 ? "\"session\":{\"new\":true,\"sessionId\":\"test-session\","
+                + "\"application\":{\"applicationId\":\"" + applicationId + "\"},"
+                + "\"user\":{\"userId\":\"test-user\",\"permissions\":{\"consentToken\":\"test\"}}}," : "";
+        String envelope = "{\"version\":\"1.0\"," + session + "\"context\":{"
+                + "\"AudioPlayer\":{\"token\":\"" + playingToken + "\",\"offsetInMilliseconds\":0,\"playerActivity\":\"PLAYING\"},"
+                + "\"System\":{\"application\":{\"applicationId\":\"" + applicationId + "\"},"
+                + "\"user\":{\"userId\":\"test-user\",\"permissions\":{\"consentToken\":\"test\"}},"
+                + "\"device\":{\"deviceId\":\"amzn1.ask.device.TEST-" + device + "\",\"supportedInterfaces\":{\"AudioPlayer\":{}}},"
+                + "\"apiEndpoint\":\"" + apiEndpoint + "\",\"apiAccessToken\":\"test\"}},"
+                + "\"request\":{" + requestType + ",\"requestId\":\"test-" + device + "\",\"timestamp\":\""
+                + Instant.ofEpochMilli(timestamp) + "\",\"locale\":\"en-US\"" + extra + "}}";
+
+        JsonObject response = post(skillUrl, envelope).getAsJsonObject("response");
+
+        if(kind == 3){
+            String speech = response.getAsJsonObject("outputSpeech").get("text").getAsString();
+            return speech.equals(deviceTitle) ? null : "help intent said \"" + speech + "\", expected \"" + deviceTitle + "\"";
+        }
+
+        long time = kind == 2 ? timestamp + TimeUnit.MINUTES.toMillis(30) - offset : timestamp;
+        long localTime = time + TimeUnit.SECONDS.toMillis(zone.getRules().getOffset(Instant.ofEpochMilli(time)).getTotalSeconds());
+        if(kind == 2 && HOUR_MS - Math.floorMod(localTime, HOUR_MS) <= TimeUnit.SECONDS.toMillis(5)){
+            localTime += HOUR_MS;
+        }
+        int hour = (int) (Math.floorMod(localTime, DAY_MS) / HOUR_MS);
+
+        JsonObject stream = response.getAsJsonArray("directives").get(0).getAsJsonObject()
+                .getAsJsonObject("audioItem").getAsJsonObject("stream");
+        String url = stream.get("url").getAsString();
+        String token = stream.get("token").getAsString();
+        PlaybackToken decoded = PlaybackToken.decode(token);
+        if(!url.contains("/" + hour + "+(Extended)") || !token.startsWith(title(hour) + "|")){
+            return "got " + token + " for " + zone + ", expected hour " + hour;
+        }
+        if(decoded == null || !decoded.zone.equals(zone)){
+            return "got token " + token + ", expected zone " + zone;
+        }
+        return null;
+    }
+
+    private static JsonObject post(URL url, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(200, connection.getResponseCode());
+        try (InputStream in = connection.getInputStream()) {
+            return new JsonParser().parse(IOUtils.toString(in, StandardCharsets.UTF_8)).getAsJsonObject();
+        }
+    }
+
+    private static String title(int dayHour){
+        int clockHour = dayHour % 12 == 0 ? 12 : dayHour % 12;
+        return String.format("%02d:00 %s (Extended) - Animal Crossing - New Leaf Music", clockHour, dayHour < 12 ? "AM" : "PM");
+    }
+
+    /**
+     * Stands in for the Alexa settings and address APIs. Even devices have a time zone setting, odd ones fall back
+     * to their address.
+     */
+    private static HttpServer startAlexaApi() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.createContext("/v2/devices/", exchange -> {
+            int device = getDevice(exchange.getRequestURI().getPath(), "/v2/devices/");
+            if(device % 2 == 1){
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+                return;
+            }
+            respond(exchange, "\"" + ADDRESSES[device % ADDRESSES.length][2] + "\"");
+        });
+        server.createContext("/v1/devices/", exchange -> {
+            String[] address = ADDRESSES[getDevice(exchange.getRequestURI().getPath(), "/v1/devices/") % ADDRESSES.length];
+            respond(exchange, "{\"countryCode\":\"" + address[0] + "\",\"postalCode\":\"" + address[1] + "\"}");
+        });
+        server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "test-alexa-api");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        return server;
+    }
+
+    private static int getDevice(String path, String prefix){
+        String deviceId = path.substring(prefix.length(), path.indexOf('/', prefix.length()));
+        return Integer.parseInt(deviceId.substring(deviceId.lastIndexOf('-') + 1));
+    }
+
+    private static void respond(HttpExchange exchange, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package animal.crossing.tunes.repository;
+
+import animal.crossing.tunes.TunesUtil;
+import animal.crossing.tunes.catalog.TrackCatalog;
+import animal.crossing.tunes.data.DeviceProfile;
+import animal.crossing.tunes.data.PlaybackState;
+import animal.crossing.tunes.data.TrackPlay;
+import animal.crossing.tunes.region.Region;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.AttributeValueUpdate;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class DynamoDbDeviceProfileRepositoryTest {
+
+    private static final String TABLE = "device-profiles";
+    private static final String DEVICE_ID = "amzn1.ask.device.TEST";
+    private static final ZoneId ZONE = ZoneId.of("America/Los_Angeles");
+    // 10:05 in Los Angeles, so a resume a minute later is still in the same hour
+    private static final long STOPPED_AT = Instant.parse("2018-03-10T18:05:00Z").toEpochMilli();
+    private static final long OFFSET = 123456;
+
+    private final Map<String, Map<String, AttributeValue>> table = new ConcurrentHashMap<>();
+    private int getItemCalls;
+    private AmazonDynamoDB dynamoDb;
+
+    @Before
+    public void setUp(){
+        dynamoDb = (AmazonDynamoDB) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{AmazonDynamoDB.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getItem":
+                            getItemCalls++;
+                            GetItemRequest get = (GetItemRequest) args[0];
+                            return new GetItemResult().withItem(table.get(get.getKey().get("deviceId").getS()));
+                        case "batchWriteItem":
+                            BatchWriteItemRequest batch = (BatchWriteItemRequest) args[0];
+                            for(WriteRequest write : batch.getRequestItems().get(TABLE)){
+                                Map<String, AttributeValue> item = write.getPutRequest().getItem();
+                                table.put(item.get("deviceId").getS(), new HashMap<>(item));
+                            }
+                            return new BatchWriteItemResult().withUnprocessedItems(new HashMap<>());
+                        case "updateItem":
+                            UpdateItemRequest update = (UpdateItemRequest) args[0];
+                            String deviceId = update.getKey().get("deviceId").getS();
+                            Map<String, AttributeValue> item = table.computeIfAbsent(deviceId, id -> {
+                                Map<String, AttributeValue> created = new HashMap<>();
+                                created.put("deviceId", new AttributeValue(id));
+                                return created;
+                            });
+                            for(Map.Entry<String, AttributeValueUpdate> attribute : update.getAttributeUpdates().entrySet()){
+                                item.put(attribute.getKey(), attribute.getValue().getValue());
+                            }
+                            return new UpdateItemResult();
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    @Test
+    public void stoppedTrackResumesFromAnotherContainer(){
+        DeviceProfile stored = new DeviceProfile(DEVICE_ID);
+        stored.timeZoneId = ZONE.getId();
+        DynamoDbDeviceProfileRepository setup = newRepository();
+        setup.save(stored);
+        setup.flush();
+        getItemCalls = 0;
+
+        String token = TunesUtil.getToken(TunesUtil.getTrack(STOPPED_AT, ZONE, true, Region.DEFAULT,
+                TrackCatalog.getDefaultRendition(), false));
+        DynamoDbDeviceProfileRepository stoppedIn = newRepository();
+        stoppedIn.recordPlayback(DEVICE_ID, PlaybackState.STOPPED, token, OFFSET, STOPPED_AT);
+        stoppedIn.flush();
+        assertEquals("recording playback must not read the table", 0, getItemCalls);
+
+        DeviceProfile profile = newRepository().get(DEVICE_ID);
+        assertEquals("the stored zone is kept", ZONE.getId(), profile.timeZoneId);
+        assertEquals(PlaybackState.STOPPED, profile.playbackState);
+        assertEquals(OFFSET, profile.playbackOffset);
+
+        TrackPlay resumed = TunesUtil.getResumedTrack(profile.lastToken, profile.playbackOffset,
+                profile.playbackUpdatedAt, STOPPED_AT + TimeUnit.MINUTES.toMillis(1), Region.DEFAULT,
+                TrackCatalog.getDefaultRendition());
+        assertNotNull(resumed);
+        assertEquals(OFFSET, resumed.offsetInMilliseconds);
+        assertEquals(token, TunesUtil.getToken(resumed));
+    }
+
+    @Test
+    public void playbackOfUnknownDeviceCreatesProfile(){
+        DynamoDbDeviceProfileRepository repository = newRepository();
+        assertNull(repository.get(DEVICE_ID));
+        repository.recordPlayback(DEVICE_ID, PlaybackState.STOPPED, "token", OFFSET, STOPPED_AT);
+
+        assertEquals(PlaybackState.STOPPED, repository.get(DEVICE_ID).playbackState);
+        repository.flush();
+        assertEquals(1, getItemCalls);
+
+        DeviceProfile profile = newRepository().get(DEVICE_ID);
+        assertEquals(PlaybackState.STOPPED, profile.playbackState);
+        assertEquals(OFFSET, profile.playbackOffset);
+        assertNull(profile.timeZoneId);
+    }
+
+    private DynamoDbDeviceProfileRepository newRepository(){
+        return new DynamoDbDeviceProfileRepository(dynamoDb, TABLE, TimeUnit.HOURS.toMillis(1));
+    }
+}